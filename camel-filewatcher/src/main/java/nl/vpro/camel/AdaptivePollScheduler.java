@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Consumer;
+import org.apache.camel.spi.ScheduledPollConsumerScheduler;
+import org.apache.camel.support.service.ServiceSupport;
+
+/**
+ * Schedules every poll only after the previous one, with the delay as it is then, so a consumer which backs off while nothing changes is not woken up in between.
+ */
+class AdaptivePollScheduler extends ServiceSupport implements ScheduledPollConsumerScheduler {
+
+    private final long initialDelay;
+    private final LongSupplier delay;
+
+    private CamelContext camelContext;
+    private Consumer consumer;
+    private Runnable task;
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> next;
+
+    /**
+     * @param initialDelay The number of milliseconds before the first poll
+     * @param delay The number of milliseconds between the end of a poll and the next one, asked after every poll
+     */
+    AdaptivePollScheduler(long initialDelay, LongSupplier delay) {
+        this.initialDelay = initialDelay;
+        this.delay = delay;
+    }
+
+    @Override
+    public CamelContext getCamelContext() {
+        return camelContext;
+    }
+
+    @Override
+    public void setCamelContext(CamelContext camelContext) {
+        this.camelContext = camelContext;
+    }
+
+    @Override
+    public void onInit(Consumer consumer) {
+        this.consumer = consumer;
+    }
+
+    @Override
+    public void scheduleTask(Runnable task) {
+        this.task = task;
+    }
+
+    @Override
+    public synchronized void unscheduleTask() {
+        cancel();
+        task = null;
+    }
+
+    @Override
+    public synchronized void startScheduler() {
+        if(next == null) {
+            schedule(initialDelay);
+        }
+    }
+
+    @Override
+    public synchronized boolean isSchedulerStarted() {
+        return next != null;
+    }
+
+    @Override
+    protected void doStart() {
+        executor = camelContext.getExecutorServiceManager().newSingleThreadScheduledExecutor(consumer, consumer.getEndpoint().getEndpointUri());
+    }
+
+    @Override
+    protected synchronized void doStop() {
+        cancel();
+        if(executor != null) {
+            camelContext.getExecutorServiceManager().shutdownNow(executor);
+            executor = null;
+        }
+    }
+
+    private synchronized void schedule(long delayMillis) {
+        if(task == null || executor == null || executor.isShutdown()) {
+            return;
+        }
+        next = executor.schedule(this::run, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void run() {
+        try {
+            task.run();
+        } finally {
+            synchronized (this) {
+                if(next != null) {
+                    schedule(delay.getAsLong());
+                }
+            }
+        }
+    }
+
+    private void cancel() {
+        if(next != null) {
+            next.cancel(false);
+            next = null;
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * Collects the changes of files until they have been quiet for a while, and merges them into one event per file. For example a truncate, a write and a chmod become one {@link FileWatcherConsumer.Event#UPDATED}, and a file which is created and deleted again before it was quiet yields nothing.
+ */
+class Debouncer {
+
+    /**
+     * A merged change, ready to be sent.
+     * @param fileName The key of the file, as given to {@link #add(String, FileWatcherConsumer.Event, File, Fingerprint, long)}
+     * @param event The merged event
+     * @param file The file, {@code null} if it was deleted
+     * @param merged The number of changes merged into this one
+     * @param before The fingerprint of the file before the first of the merged changes, {@code null} if it was unknown
+     */
+    record Change(String fileName, FileWatcherConsumer.Event event, File file, int merged, Fingerprint before) {
+    }
+
+    private static class Pending {
+        FileWatcherConsumer.Event event;
+        File file;
+        int merged;
+        long lastChange;
+        long size;
+        Fingerprint before;
+    }
+
+    private final long quietPeriod;
+    private final boolean stableSize;
+
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+
+    /**
+     * @param quietPeriod The number of milliseconds a file must be unchanged before its change is ready
+     * @param stableSize Whether the size of the file must be unchanged during the quiet period too
+     */
+    Debouncer(long quietPeriod, boolean stableSize) {
+        this.quietPeriod = quietPeriod;
+        this.stableSize = stableSize;
+    }
+
+    /**
+     * Adds a change, restarting the quiet period of the file.
+     * @param before The fingerprint of the file before this change, only used if it is the first pending change of the file
+     * @param now The current time in milliseconds
+     */
+    synchronized void add(String fileName, FileWatcherConsumer.Event event, File file, Fingerprint before, long now) {
+        final Pending existing = pending.get(fileName);
+        if(existing == null) {
+            final Pending p = new Pending();
+            p.event = event;
+            p.file = file;
+            p.merged = 1;
+            p.lastChange = now;
+            p.size = size(file);
+            p.before = before;
+            pending.put(fileName, p);
+            return;
+        }
+        existing.event = merge(existing.event, event);
+        existing.file = file;
+        existing.merged++;
+        existing.lastChange = now;
+        existing.size = size(file);
+    }
+
+    /**
+     * Removes and returns the changes which have been quiet long enough. Changes which cancelled each other out are removed without being returned.
+     */
+    synchronized List<Change> ready(long now) {
+        final List<Change> result = new ArrayList<>();
+        final Iterator<Map.Entry<String, Pending>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<String, Pending> entry = iterator.next();
+            final Pending p = entry.getValue();
+            if(now - p.lastChange < quietPeriod) {
+                continue;
+            }
+            if(stableSize && p.file != null) {
+                final long size = size(p.file);
+                if(size != p.size) {
+                    // still growing (or shrinking)
+                    p.size = size;
+                    p.lastChange = now;
+                    continue;
+                }
+            }
+            iterator.remove();
+            if(p.event != null) {
+                result.add(new Change(entry.getKey(), p.event, p.file, p.merged, p.before));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Puts back a change which was {@link #ready(long) ready} but could not be sent, so it is ready again after another quiet period. The file must not have had new changes since.
+     * @param now The current time in milliseconds
+     */
+    synchronized void retry(Change change, long now) {
+        final Pending p = new Pending();
+        p.event = change.event();
+        p.file = change.file();
+        p.merged = change.merged();
+        p.lastChange = now;
+        p.size = size(change.file());
+        p.before = change.before();
+        pending.put(change.fileName(), p);
+    }
+
+    /**
+     * Replaces the fingerprints of files with pending changes by their fingerprints before these changes, or leaves them out if those are unknown. So that only handled changes are saved, and pending ones are seen again after a restart.
+     */
+    synchronized Map<String, Fingerprint> handled(Map<String, Fingerprint> fingerprints) {
+        final Map<String, Fingerprint> result = new TreeMap<>(fingerprints);
+        pending.forEach((fileName, p) -> {
+            if(p.before == null) {
+                result.remove(fileName);
+            } else {
+                result.put(fileName, p.before);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return The time at which the next change may be ready, or {@code -1} if there are none
+     */
+    synchronized long nextDue() {
+        return pending.values().stream().mapToLong(p -> p.lastChange + quietPeriod).min().orElse(-1);
+    }
+
+    synchronized int size() {
+        return pending.size();
+    }
+
+    synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * The event describing both changes together, or {@code null} if they cancel out.
+     */
+    static FileWatcherConsumer.Event merge(FileWatcherConsumer.Event first, FileWatcherConsumer.Event next) {
+        if(first == null) {
+            // it was created and deleted before, so it is new now
+            return next == FileWatcherConsumer.Event.DELETED ? null : FileWatcherConsumer.Event.CREATED;
+        }
+        return switch(first) {
+            case STARTED, CREATED -> next == FileWatcherConsumer.Event.DELETED ? null : first;
+            case UPDATED -> next == FileWatcherConsumer.Event.DELETED ? FileWatcherConsumer.Event.DELETED : FileWatcherConsumer.Event.UPDATED;
+            // replaced
+            case DELETED -> next == FileWatcherConsumer.Event.DELETED ? FileWatcherConsumer.Event.DELETED : FileWatcherConsumer.Event.UPDATED;
+        };
+    }
+
+    private static long size(File file) {
+        return file == null ? -1 : file.length();
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * The known files in a watched directory, with their {@link Fingerprint fingerprints}, so a scan of (a part of) the directory only yields what changed since.
+ * <p>
+ * Only regular files are indexed, optionally in subdirectories too, and filtered by include and exclude globs on their path relative to the directory. If their content is hashed, a file whose modification time changed but whose content did not yields no change; its fingerprint is updated right away.
+ */
+class DirectoryIndex {
+
+    /**
+     * A difference between the index and the file system.
+     * @param relative The path of the file relative to the watched directory
+     * @param event {@link FileWatcherConsumer.Event#CREATED}, {@link FileWatcherConsumer.Event#UPDATED} or {@link FileWatcherConsumer.Event#DELETED}
+     * @param fingerprint The new fingerprint of the file, {@code null} if deleted
+     */
+    record Change(Path relative, FileWatcherConsumer.Event event, Fingerprint fingerprint) {
+    }
+
+    /**
+     * @param changes What changed, to be {@link #apply(Change) applied} when handled
+     * @param directories The directories encountered (including the start, if it is one), e.g. to watch them
+     */
+    record Scan(List<Change> changes, List<Path> directories) {
+    }
+
+    private final Path root;
+    private final boolean recursive;
+    private final PathMatcher include;
+    private final PathMatcher exclude;
+    private final boolean hash;
+
+    private final Map<Path, Fingerprint> entries = new HashMap<>();
+
+    /**
+     * @param include Glob the relative paths must match, or {@code null}
+     * @param exclude Glob the relative paths must not match, or {@code null}
+     * @param hash Whether to compare the files by the hashes of their content
+     */
+    DirectoryIndex(Path root, boolean recursive, String include, String exclude, boolean hash) {
+        this.root = root;
+        this.hash = hash;
+        this.recursive = recursive;
+        this.include = include == null ? null : root.getFileSystem().getPathMatcher("glob:" + include);
+        this.exclude = exclude == null ? null : root.getFileSystem().getPathMatcher("glob:" + exclude);
+    }
+
+    Path getRoot() {
+        return root;
+    }
+
+    /**
+     * Compares the files at or below {@code start} with the index.
+     */
+    Scan scan(Path start) throws IOException {
+        final Map<Path, BasicFileAttributes> found = new HashMap<>();
+        final List<Path> directories = new ArrayList<>();
+        final Path relativeStart = root.relativize(start);
+        if(Files.exists(start) && (recursive || relativeStart.getNameCount() <= 1)) {
+            final int depth = recursive ? Integer.MAX_VALUE : 1 - (relativeStart.toString().isEmpty() ? 0 : relativeStart.getNameCount());
+            try (Stream<Path> paths = Files.walk(start, depth)) {
+                paths.forEach(path -> {
+                    try {
+                        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                        if(attributes.isDirectory()) {
+                            directories.add(path);
+                        } else if(attributes.isRegularFile() && matches(root.relativize(path))) {
+                            found.put(root.relativize(path), attributes);
+                        }
+                    } catch (NoSuchFileException e) {
+                        // deleted meanwhile
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        final List<Change> changes = new ArrayList<>();
+        for(Map.Entry<Path, BasicFileAttributes> entry : found.entrySet()) {
+            final Path relative = entry.getKey();
+            final Fingerprint previous = entries.get(relative);
+            final Fingerprint fingerprint;
+            try {
+                fingerprint = Fingerprint.of(root.resolve(relative), entry.getValue(), previous, hash);
+            } catch (NoSuchFileException e) {
+                // deleted meanwhile, the next scan notices
+                continue;
+            }
+            if(previous == null) {
+                changes.add(new Change(relative, FileWatcherConsumer.Event.CREATED, fingerprint));
+            } else if(fingerprint.differs(previous)) {
+                changes.add(new Change(relative, FileWatcherConsumer.Event.UPDATED, fingerprint));
+            } else if(fingerprint != previous) {
+                // only touched
+                entries.put(relative, fingerprint);
+            }
+        }
+        for(Path relative : entries.keySet()) {
+            if(isBelow(relative, relativeStart) && !found.containsKey(relative)) {
+                changes.add(new Change(relative, FileWatcherConsumer.Event.DELETED, null));
+            }
+        }
+        changes.sort(Comparator.comparing(Change::relative));
+        return new Scan(changes, directories);
+    }
+
+    /**
+     * Scans the given directories once more, and replaces what the earlier scan found at or below them by the outcome. E.g. for directories which started being watched only after the scan walked them, so that files created in between are not missed.
+     */
+    Scan rescan(Scan scan, Collection<Path> directories) throws IOException {
+        // only the outermost, the others are part of their scans
+        final List<Path> starts = directories.stream()
+            .filter(directory -> directories.stream().noneMatch(other -> !other.equals(directory) && directory.startsWith(other)))
+            .toList();
+        final List<Change> changes = new ArrayList<>();
+        for(Change change : scan.changes()) {
+            if(starts.stream().noneMatch(start -> root.resolve(change.relative()).startsWith(start))) {
+                changes.add(change);
+            }
+        }
+        final Set<Path> found = new LinkedHashSet<>(scan.directories());
+        for(Path start : starts) {
+            final Scan again = scan(start);
+            changes.addAll(again.changes());
+            found.addAll(again.directories());
+        }
+        changes.sort(Comparator.comparing(Change::relative));
+        return new Scan(changes, new ArrayList<>(found));
+    }
+
+    /**
+     * Updates the index with a handled change.
+     */
+    void apply(Change change) {
+        if(change.event() == FileWatcherConsumer.Event.DELETED) {
+            entries.remove(change.relative());
+        } else {
+            entries.put(change.relative(), change.fingerprint());
+        }
+    }
+
+    /**
+     * @return The fingerprint of the file, or {@code null} if it is not known
+     */
+    Fingerprint fingerprint(Path relative) {
+        return entries.get(relative);
+    }
+
+    /**
+     * @return The fingerprints of the known files, by their paths relative to the directory
+     */
+    Map<String, Fingerprint> fingerprints() {
+        final Map<String, Fingerprint> result = new TreeMap<>();
+        entries.forEach((relative, fingerprint) -> result.put(relative.toString(), fingerprint));
+        return result;
+    }
+
+    /**
+     * Replaces the known files, e.g. with what was known before a restart, so the next scan only yields what changed since.
+     */
+    void restore(Map<String, Fingerprint> fingerprints) {
+        entries.clear();
+        fingerprints.forEach((relative, fingerprint) -> entries.put(root.getFileSystem().getPath(relative), fingerprint));
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private boolean matches(Path relative) {
+        return (include == null || include.matches(relative)) && (exclude == null || !exclude.matches(relative));
+    }
+
+    private static boolean isBelow(Path relative, Path start) {
+        return start.toString().isEmpty() || relative.startsWith(start);
+    }
+}
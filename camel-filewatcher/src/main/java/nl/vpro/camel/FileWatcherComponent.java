@@ -23,13 +23,48 @@ import org.apache.camel.support.DefaultComponent;
 
 /**
  * Represents the component that manages {@link FileWatcherEndpoint}.
+ * <p>
+ * Consumers in {@link FileWatcherEndpoint.Mode#WATCH_SERVICE} share the {@link WatchServiceRegistry} of the component, so the number of watches and threads depends on the number of watched directories, not files.
  */
 public class FileWatcherComponent extends DefaultComponent {
 
+    private int watchDispatcherPoolSize = 1;
+
+    private WatchServiceRegistry watchServiceRegistry;
+
     @Override
     protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) throws Exception {
         Endpoint endpoint = new FileWatcherEndpoint(getCamelContext(), uri, this);
         setProperties(endpoint, parameters);
         return endpoint;
     }
+
+    public int getWatchDispatcherPoolSize() {
+        return watchDispatcherPoolSize;
+    }
+
+    /**
+     * The number of threads handing watch service events to the consumers. Defaults to 1.
+     */
+    public void setWatchDispatcherPoolSize(int watchDispatcherPoolSize) {
+        this.watchDispatcherPoolSize = watchDispatcherPoolSize;
+    }
+
+    synchronized WatchServiceRegistry watchServiceRegistry() {
+        if(watchServiceRegistry == null) {
+            watchServiceRegistry = new WatchServiceRegistry(getCamelContext(), this, watchDispatcherPoolSize);
+        }
+        return watchServiceRegistry;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (this) {
+            if(watchServiceRegistry != null) {
+                watchServiceRegistry.close();
+                watchServiceRegistry = null;
+            }
+        }
+        super.doStop();
+    }
 }
@@ -17,46 +17,198 @@
 package nl.vpro.camel;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
 
 import org.apache.camel.Exchange;
 import org.apache.camel.Processor;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.spi.StateRepository;
 import org.apache.camel.support.*;
+import org.apache.camel.support.processor.state.FileStateRepository;
+import org.apache.camel.support.service.ServiceHelper;
 import org.apache.camel.util.FileUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks the modification time of the watched file, and sends an {@link Event} when it was created, updated or deleted.
+ * <p>
+ * If the endpoint points to a directory, this is done for every file in it (optionally {@link FileWatcherEndpoint#isRecursive() recursively}, and filtered by {@link FileWatcherEndpoint#getInclude() include} and {@link FileWatcherEndpoint#getExclude() exclude} globs), using a {@link DirectoryIndex}. One exchange is sent per changed file, with its path relative to the directory in the {@link Exchange#FILE_NAME} header.
+ * <p>
+ * Whether a file changed is decided by its modification time, or, with {@link FileWatcherEndpoint.ChangeDetection#HASH}, by a {@link Fingerprint} of its content.
+ * <p>
+ * With {@link FileWatcherEndpoint#isTail() tail} the body is not the file, but what was appended to it since the previous exchange, as read by a {@link Tailer}. Files which exist when the consumer starts are read from their end then.
+ * <p>
+ * With {@link FileWatcherEndpoint#isSnapshot() snapshot} the body is a read-only {@link java.nio.ByteBuffer} with the content of the file at the moment the exchange is created, see {@link Snapshot}.
+ * <p>
+ * With a {@link FileWatcherEndpoint#getStateRepository() state repository} the {@link Fingerprint fingerprints} of the files are saved after every handled change, and restored when the consumer starts, so a restart only yields events for files which changed while it was down.
+ * <p>
+ * With a {@link LeaderElection} only the leader checks the files and sends exchanges. The others keep their scheduler running, only to check whether they became the leader.
+ * <p>
+ * With an {@link FileWatcherEndpoint#isAdaptive() adaptive} delay, the files are checked more often right after a change, and less often while nothing changes, see {@link #getCurrentDelay()}.
+ * <p>
+ * With a {@link FileWatcherEndpoint#getQuietPeriod() quiet period} the changes of a file are collected by a {@link Debouncer}, and sent as one exchange when the file was quiet long enough. The file is not reported again meanwhile, and if the exchange fails, it is offered again after another quiet period.
+ * <p>
+ * With {@link FileWatcherEndpoint.Mode#POLL} this is done on every poll. With {@link FileWatcherEndpoint.Mode#WATCH_SERVICE} the directory (and with {@link FileWatcherEndpoint#isRecursive()} its subdirectories) is registered with the {@link WatchServiceRegistry} of the component, and only what the {@link WatchService} reports about is checked, as soon as it does; no polls are scheduled then. If the directory can't be watched (it doesn't exist, or the file system doesn't support it), or stops being watchable, the consumer falls back to polling.
+ */
+@ManagedResource(description = "File watcher consumer")
+public class FileWatcherConsumer extends DefaultScheduledPollConsumer implements WatchServiceRegistry.Listener {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileWatcherConsumer.class);
 
-public class FileWatcherConsumer extends DefaultScheduledPollConsumer {
     public enum Event {
         STARTED, CREATED, UPDATED, DELETED
     }
 
+    /**
+     * Header with the number of changes merged into the exchange, if there is a {@link FileWatcherEndpoint#getQuietPeriod() quiet period}
+     */
+    public static final String MERGED_EVENTS = "fileWatchMergedEvents";
+
+    /**
+     * Header with the position in the file of the first byte of the body, if {@link FileWatcherEndpoint#isTail() tailing}
+     */
+    public static final String TAIL_OFFSET = "fileWatchTailOffset";
+
+    private final FileWatcherEndpoint endpoint;
+
     private File watchedFile;
 
+    /**
+     * The index of the watched directory, or {@code null} if a single file is watched
+     */
+    private DirectoryIndex index;
+
+    /**
+     * Holds back changes until the file is quiet, if there is a {@link FileWatcherEndpoint#getQuietPeriod() quiet period}
+     */
+    private Debouncer debouncer;
+
+    private boolean flushScheduled = false;
+
+    /**
+     * Remembers how far the files were read, if {@link FileWatcherEndpoint#isTail() tailing}
+     */
+    private Tailer tailer;
+
     private long previousLastModified = 0;
 
+    /**
+     * With {@link FileWatcherEndpoint.ChangeDetection#HASH}, the fingerprint of the file at the previous check
+     */
+    private Fingerprint previousFingerprint;
+
+    /**
+     * Where the fingerprints of the files are kept between restarts, if {@link FileWatcherEndpoint#getStateRepository() configured}
+     */
+    private StateRepository<String, String> stateRepository;
+
+    private boolean ownStateRepository = false;
+
+    /**
+     * Decides whether this consumer is the one to watch, if {@link FileWatcherEndpoint#getLeaderLockFile() configured}
+     */
+    private LeaderElection election;
+
+    private boolean leader = false;
+
+    private long currentDelay;
+
     private boolean firstPoll = true;
 
-    FileWatcherConsumer(DefaultEndpoint endpoint, Processor processor) {
+    private final Map<Path, WatchServiceRegistry.Registration> registrations = new HashMap<>();
+
+    private volatile boolean watching = false;
+
+    private boolean polling = false;
+
+    FileWatcherConsumer(FileWatcherEndpoint endpoint, Processor processor) {
         super(endpoint, processor);
+        this.endpoint = endpoint;
         setPollStrategy(new DefaultPollingConsumerPollStrategy());
+        if(endpoint.isAdaptive()) {
+            // every poll is scheduled after the previous one, with the delay as adapted by it
+            setScheduler(new AdaptivePollScheduler(getInitialDelay(), this::nextDelay));
+            currentDelay = endpoint.getMinDelay();
+        }
     }
 
     @Override
     protected int poll() throws Exception {
+        if(watching) {
+            // only scheduled to notice becoming the leader
+            leading();
+            return 0;
+        }
+        if(!leading()) {
+            return 0;
+        }
+        final int count = index == null ? check() : scan(index.getRoot());
+        adapt(count);
+        return debouncer == null ? count : flush();
+    }
+
+    /**
+     * With an {@link FileWatcherEndpoint#isAdaptive() adaptive} delay, checks again after the {@link FileWatcherEndpoint#getMinDelay() minimal delay} if something changed, and otherwise doubles the delay, up to the {@link FileWatcherEndpoint#getMaxDelay() maximal delay}.
+     */
+    private void adapt(int changes) {
+        if(!endpoint.isAdaptive()) {
+            return;
+        }
+        currentDelay = changes > 0 ? endpoint.getMinDelay() : Math.min(endpoint.getMaxDelay(), Math.max(currentDelay, endpoint.getMinDelay()) * 2);
+    }
+
+    /**
+     * The number of milliseconds after which the files are checked again.
+     */
+    @ManagedAttribute(description = "Milliseconds until the next check of the files, after the previous one")
+    public long getCurrentDelay() {
+        return endpoint.isAdaptive() ? currentDelay : getDelay();
+    }
+
+    /**
+     * The delay until the next poll of the {@link AdaptivePollScheduler}: the {@link #getCurrentDelay() current delay}, unless a held back change is due earlier.
+     */
+    private synchronized long nextDelay() {
+        final long due = debouncer == null ? -1 : debouncer.nextDue();
+        return due < 0 ? currentDelay : Math.max(0, Math.min(currentDelay, due - System.currentTimeMillis()));
+    }
+
+    /**
+     * Compares the file with its state at the previous check, and sends the corresponding event, if any.
+     */
+    private synchronized int check() throws Exception {
+        if(!leading()) {
+            return 0;
+        }
         if(noFileSinceStartup()) {
             firstPoll = false;
             return 0;
         }
 
         if(previousFileWasDeleted()) {
-            exchangeFileDeleted();
+            emit(Event.DELETED, null, watchedFile.getName(), previousFingerprint);
             // do not update timestamp when an exception is not handled
             previousLastModified = 0;
+            previousFingerprint = null;
+            saveState();
             return 1;
         }
 
         final long newLastModified = watchedFile.lastModified();
+        final Fingerprint newFingerprint = fingerprint();
 
-        if(notModified(newLastModified)) {
+        if(notModified(newLastModified, newFingerprint)) {
+            if(hashing()) {
+                // only touched, no need to hash it again
+                previousLastModified = newLastModified;
+                previousFingerprint = newFingerprint;
+            }
             return 0;
         }
 
@@ -71,20 +223,68 @@ public class FileWatcherConsumer extends DefaultScheduledPollConsumer {
             event = Event.UPDATED;
         }
 
-        exchangeFile(event);
+        emit(event, watchedFile, watchedFile.getName(), previousLastModified > 0 ? previousFingerprint : null);
         // do not update fields when an exception is not handled
         this.previousLastModified = newLastModified;
+        this.previousFingerprint = newFingerprint;
         this.firstPoll = false;
+        saveState();
         return 1;
     }
 
+    /**
+     * Compares the files at or below {@code start} in the watched directory with the index, and sends an event for every difference.
+     */
+    private synchronized int scan(Path start) throws Exception {
+        if(!leading()) {
+            return 0;
+        }
+        DirectoryIndex.Scan scan = index.scan(start);
+        if(watching && endpoint.isRecursive()) {
+            List<Path> registered = watch(scan.directories());
+            while(!registered.isEmpty()) {
+                // files created in these before they were registered would not be noticed otherwise
+                scan = index.rescan(scan, registered);
+                registered = watch(scan.directories());
+            }
+        }
+        for(DirectoryIndex.Change change : scan.changes()) {
+            final Event event = change.event() == Event.CREATED && firstPoll ? Event.STARTED : change.event();
+            final File file = change.event() == Event.DELETED ? null : index.getRoot().resolve(change.relative()).toFile();
+            if(emit(event, file, change.relative().toString(), index.fingerprint(change.relative()))) {
+                // do not update the index when an exception is not handled
+                index.apply(change);
+            }
+        }
+        firstPoll = false;
+        if(!scan.changes().isEmpty()) {
+            saveState();
+        }
+        return scan.changes().size();
+    }
+
     @Override
     protected void doInit() throws Exception {
         String watchedFilePath = resolvePath();
         watchedFile = new File(watchedFilePath);
 
         if(watchedFile.isDirectory()) {
-            throw new IllegalArgumentException("Endpoint " + getEndpoint() + " should not point to a directory + " + watchedFile.getAbsolutePath());
+            index = new DirectoryIndex(watchedFile.getAbsoluteFile().toPath(), endpoint.isRecursive(), endpoint.getInclude(), endpoint.getExclude(), hashing());
+        }
+
+        if(endpoint.isTail()) {
+            tailer = new Tailer(endpoint.isTailLines());
+        }
+
+        if(endpoint.getQuietPeriod() > 0) {
+            debouncer = new Debouncer(endpoint.getQuietPeriod(), endpoint.isStableSize());
+        }
+
+        if(endpoint.getStateRepository() != null) {
+            stateRepository = endpoint.getStateRepository();
+        } else if(endpoint.getStateFile() != null) {
+            stateRepository = FileStateRepository.fileStateRepository(new File(endpoint.getStateFile()));
+            ownStateRepository = true;
         }
 
         if(watchedFile.exists() && !watchedFile.canRead()) {
@@ -95,11 +295,301 @@ public class FileWatcherConsumer extends DefaultScheduledPollConsumer {
     }
 
 
+    @Override
+    protected void doStart() throws Exception {
+        if(endpoint.getClusterNamespace() != null) {
+            election = LeaderElection.cluster(getEndpoint().getCamelContext(), endpoint.getClusterNamespace());
+        } else if(endpoint.getLeaderLockFile() != null) {
+            election = LeaderElection.fileLock(Path.of(endpoint.getLeaderLockFile()));
+        }
+        // our own state file is only read once leading, see leading()
+        if(stateRepository != null && !(ownStateRepository && election != null)) {
+            ServiceHelper.startService(stateRepository);
+            restoreState();
+        }
+        polling = !(endpoint.getMode() == FileWatcherEndpoint.Mode.WATCH_SERVICE && startWatching());
+        setStartScheduler(polling || election != null);
+        super.doStart();
+        if(watching) {
+            registrations.get(watchedDirectory()).execute(() -> refreshQuietly(watchedDirectory()));
+        }
+    }
+
+    @Override
+    protected void doResume() throws Exception {
+        super.doResume();
+        if(watching) {
+            // events are ignored while suspended
+            registrations.get(watchedDirectory()).execute(() -> refreshQuietly(watchedDirectory()));
+        }
+    }
+
     @Override
     protected void doStop() throws Exception {
         super.doStop();
+        stopWatching();
         previousLastModified = 0;
+        previousFingerprint = null;
         firstPoll = true;
+        currentDelay = endpoint.getMinDelay();
+        if(index != null) {
+            index.clear();
+        }
+        if(tailer != null) {
+            tailer.clear();
+        }
+        if(debouncer != null) {
+            if(debouncer.size() > 0) {
+                LOG.info("Dropping {} changes which were not quiet yet", debouncer.size());
+            }
+            debouncer.clear();
+            flushScheduled = false;
+        }
+        if(ownStateRepository && (election == null || leader)) {
+            ServiceHelper.stopService(stateRepository);
+        }
+        if(election != null) {
+            election.close();
+            election = null;
+            leader = false;
+        }
+    }
+
+    /**
+     * Whether this consumer should check the files: always, unless there is a {@link #election leader election} which it did not win. Becoming the leader is logged, and the state is {@link #restoreState() restored}, so it continues where the previous leader stopped, if they share a state repository.
+     * <p>
+     * Our own {@link FileStateRepository} is read anew on becoming the leader. The previous one is dropped without stopping it, since stopping would write its outdated cache over what the other leader wrote meanwhile. Nothing is lost by that, because it writes every change to the file right away.
+     */
+    private synchronized boolean leading() throws Exception {
+        if(election == null) {
+            return true;
+        }
+        final boolean leading = election.isLeader();
+        if(leading != leader) {
+            leader = leading;
+            if(leading) {
+                LOG.info("{} became the leader", getEndpoint());
+                if(stateRepository != null) {
+                    if(ownStateRepository) {
+                        // read what the previous leader wrote
+                        stateRepository = FileStateRepository.fileStateRepository(new File(endpoint.getStateFile()));
+                        ServiceHelper.startService(stateRepository);
+                    }
+                    restoreState();
+                }
+                if(watching) {
+                    registrations.get(watchedDirectory()).execute(() -> refreshQuietly(watchedDirectory()));
+                }
+            } else {
+                LOG.info("{} is not the leader (anymore)", getEndpoint());
+            }
+        }
+        return leading;
+    }
+
+    /**
+     * Continues with what was known when the consumer last stopped, if there is a {@link #stateRepository}. Files which did not change since then yield no events, and files which were created meanwhile give {@link Event#CREATED} rather than {@link Event#STARTED}.
+     */
+    private void restoreState() throws IOException {
+        final String value = stateRepository.getState(stateKey());
+        if(value == null) {
+            return;
+        }
+        final Map<String, Fingerprint> state = Fingerprint.parse(value);
+        if(index != null) {
+            index.restore(state);
+        } else {
+            final Fingerprint fingerprint = state.get(watchedFile.getName());
+            if(fingerprint != null) {
+                previousLastModified = fingerprint.lastModified();
+                previousFingerprint = fingerprint;
+            }
+        }
+        if(tailer != null) {
+            for(Map.Entry<String, Fingerprint> entry : state.entrySet()) {
+                final Path path = index == null ? watchedFile.toPath() : index.getRoot().resolve(entry.getKey());
+                tailer.restore(entry.getKey(), path, entry.getValue().size());
+            }
+        }
+        firstPoll = false;
+        LOG.info("Restored the state of {} files for {}", state.size(), getEndpoint());
+    }
+
+    private void saveState() {
+        if(stateRepository == null) {
+            return;
+        }
+        final Map<String, Fingerprint> state;
+        if(index != null) {
+            state = index.fingerprints();
+        } else if(previousLastModified > 0 && previousFingerprint != null) {
+            state = Map.of(watchedFile.getName(), previousFingerprint);
+        } else {
+            state = Map.of();
+        }
+        stateRepository.setState(stateKey(), Fingerprint.format(debouncer == null ? state : debouncer.handled(state)));
+    }
+
+    /**
+     * The absolute path of the watched file or directory, without {@code =}, which a {@link FileStateRepository} doesn't allow in keys.
+     */
+    private String stateKey() {
+        return watchedFile.getAbsolutePath().replace("=", "%3D");
+    }
+
+    /**
+     * Whether changes are currently noticed via the {@link WatchService}, rather than by polling.
+     */
+    @ManagedAttribute(description = "Whether changes are noticed by a watch service, rather than by polling")
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * The directory to register with the watch service: the watched directory itself, or the directory of the watched file.
+     */
+    private Path watchedDirectory() {
+        return index == null ? watchedFile.getAbsoluteFile().toPath().getParent() : index.getRoot();
+    }
+
+    private synchronized boolean startWatching() {
+        final Path directory = watchedDirectory();
+        try {
+            registrations.put(directory, ((FileWatcherComponent) endpoint.getComponent()).watchServiceRegistry().register(directory, this));
+        } catch (IOException | UnsupportedOperationException e) {
+            LOG.warn("Can't watch {} ({}), falling back to polling", directory, e.getMessage());
+            return false;
+        }
+        watching = true;
+        LOG.debug("Watching {} for changes of {}", directory, index == null ? watchedFile.getName() : "its files");
+        return true;
+    }
+
+    /**
+     * Watches subdirectories too, if they aren't already.
+     * @return The directories which were registered now
+     */
+    private List<Path> watch(List<Path> directories) {
+        final List<Path> registered = new ArrayList<>();
+        for(Path directory : directories) {
+            if(registrations.containsKey(directory)) {
+                continue;
+            }
+            try {
+                registrations.put(directory, ((FileWatcherComponent) endpoint.getComponent()).watchServiceRegistry().register(directory, this));
+                registered.add(directory);
+            } catch (IOException | UnsupportedOperationException e) {
+                LOG.warn("Can't watch {} ({}), changes in it will not be noticed", directory, e.getMessage());
+            }
+        }
+        return registered;
+    }
+
+    @Override
+    public void changed(Path directory, List<WatchEvent<?>> events) {
+        final Set<Path> changed = new LinkedHashSet<>();
+        for(WatchEvent<?> event : events) {
+            if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // events may have been lost, so just check everything
+                refreshQuietly(directory);
+                return;
+            }
+            changed.add(directory.resolve((Path) event.context()));
+        }
+        if(index == null) {
+            if(changed.contains(watchedFile.getAbsoluteFile().toPath())) {
+                refreshQuietly(directory);
+            }
+        } else {
+            changed.forEach(this::refreshQuietly);
+        }
+    }
+
+    @Override
+    public synchronized void invalidated(Path directory) {
+        if(!directory.equals(watchedDirectory())) {
+            // a subdirectory was deleted
+            final WatchServiceRegistry.Registration registration = registrations.remove(directory);
+            if(registration != null) {
+                registration.close();
+            }
+            refreshQuietly(directory);
+            return;
+        }
+        LOG.warn("{} can't be watched anymore, falling back to polling", directory);
+        stopWatching();
+        refreshQuietly(directory);
+        if(isRunAllowed() && !polling) {
+            polling = true;
+            startScheduler();
+        }
+    }
+
+    /**
+     * Checks the watched file, or scans the watched directory from {@code start}.
+     */
+    private void refreshQuietly(Path start) {
+        if(!isRunAllowed() || isSuspended()) {
+            return;
+        }
+        try {
+            if(index == null) {
+                check();
+            } else {
+                scan(start);
+            }
+        } catch (Exception e) {
+            getExceptionHandler().handleException("Error checking " + start, e);
+        }
+    }
+
+    /**
+     * Sends the changes which have been quiet long enough, and, when watching, schedules the next flush.
+     */
+    private synchronized int flush() {
+        final int pending = debouncer.size();
+        final List<Debouncer.Change> ready = debouncer.ready(System.currentTimeMillis());
+        for(Debouncer.Change change : ready) {
+            boolean sent = false;
+            try {
+                sent = send(change.event(), change.file(), change.fileName(), change.merged());
+            } catch (Exception e) {
+                getExceptionHandler().handleException("Error processing " + change.fileName(), e);
+            }
+            if(!sent) {
+                // like an unhandled change without quiet period, which is seen again at the next check
+                debouncer.retry(change, System.currentTimeMillis());
+            }
+        }
+        if(!ready.isEmpty() || debouncer.size() != pending) {
+            // sent or cancelled out, so no longer left out of the state
+            saveState();
+        }
+        scheduleFlush();
+        return ready.size();
+    }
+
+    private synchronized void scheduleFlush() {
+        final long due = debouncer.nextDue();
+        final WatchServiceRegistry.Registration registration = registrations.get(watchedDirectory());
+        if(!watching || flushScheduled || due < 0 || registration == null) {
+            return;
+        }
+        flushScheduled = true;
+        registration.schedule(() -> {
+            synchronized (this) {
+                flushScheduled = false;
+                if(isRunAllowed() && !isSuspended()) {
+                    flush();
+                }
+            }
+        }, Math.max(0, due - System.currentTimeMillis()));
+    }
+
+    private synchronized void stopWatching() {
+        watching = false;
+        registrations.values().forEach(WatchServiceRegistry.Registration::close);
+        registrations.clear();
     }
 
     private boolean noFileSinceStartup() {
@@ -110,8 +600,26 @@ public class FileWatcherConsumer extends DefaultScheduledPollConsumer {
         return previousLastModified > 0 && !watchedFile.exists();
     }
 
-    private boolean notModified(long newLastModified) {
-        return newLastModified <= this.previousLastModified;
+    private boolean notModified(long newLastModified, Fingerprint newFingerprint) {
+        if(!hashing()) {
+            return newLastModified <= this.previousLastModified;
+        }
+        return previousFingerprint != null && !newFingerprint.differs(previousFingerprint);
+    }
+
+    private boolean hashing() {
+        return endpoint.getChangeDetection() == FileWatcherEndpoint.ChangeDetection.HASH;
+    }
+
+    /**
+     * @return The fingerprint of the watched file, if {@link #hashing()} or {@link #saveState() saving it}, otherwise {@code null}
+     */
+    private Fingerprint fingerprint() throws IOException {
+        if(!(hashing() || stateRepository != null) || !watchedFile.exists()) {
+            return null;
+        }
+        final Path path = watchedFile.toPath();
+        return Fingerprint.of(path, Files.readAttributes(path, BasicFileAttributes.class), previousFingerprint, hashing());
     }
 
     private boolean routeStartedOrFileCreated() {
@@ -130,18 +638,75 @@ public class FileWatcherConsumer extends DefaultScheduledPollConsumer {
         return FileUtil.normalizePath(authority + path);
     }
 
-    private void exchangeFileDeleted() throws Exception {
-        Exchange exchange = getEndpoint().createExchange();
-        exchange.getIn().setBody(null);
-        exchange.getIn().setHeader("fileWatchEvent", Event.DELETED.name());
+    /**
+     * Sends the exchange for the event, or, if there is a {@link #debouncer}, holds it back until the file is quiet.
+     * @param fileName The name of the file, or its path relative to the watched directory
+     * @param before The fingerprint of the file before the change, if known
+     * @return Whether the event was handled (or held back), so the state can be updated
+     */
+    private boolean emit(Event event, File file, String fileName, Fingerprint before) throws Exception {
+        if(debouncer != null) {
+            debouncer.add(fileName, event, file, before, System.currentTimeMillis());
+            scheduleFlush();
+            return true;
+        }
+        return send(event, file, fileName, 0);
+    }
+
+    /**
+     * Sends the exchange for the event. When {@link #tailer tailing}, its body is what was appended to the file, and nothing is sent if nothing was.
+     * @param merged The number of changes merged into the event, {@code 0} if not {@link #debouncer debounced}
+     * @return Whether the exchange was handled
+     */
+    private boolean send(Event event, File file, String fileName, int merged) throws Exception {
+        if(tailer != null && file != null) {
+            return tail(event, file, fileName, merged);
+        }
+        final Exchange exchange = exchange(event, fileName, merged);
+        exchange.getIn().setBody(file);
+        if(tailer != null) {
+            tailer.remove(fileName);
+        } else if(endpoint.isSnapshot() && file != null) {
+            exchange.getIn().setBody(Snapshot.of(file.toPath(), endpoint.isSnapshotCopy(), endpoint.getSnapshotDirectory() == null ? null : Path.of(endpoint.getSnapshotDirectory())));
+        }
         process(exchange);
+        return exchange.getException() == null;
     }
 
-    private void exchangeFile(Event event) throws Exception {
-        Exchange exchange = getEndpoint().createExchange();
+    /**
+     * Sends what was appended to the file, in an exchange per {@link Tailer#MAX_CHUNK_SIZE} bytes at most.
+     * @return Whether all exchanges were handled
+     */
+    private boolean tail(Event event, File file, String fileName, int merged) throws Exception {
+        if(event == Event.STARTED) {
+            tailer.skip(fileName, file.toPath());
+            return true;
+        }
+        Tailer.Chunk chunk;
+        while((chunk = tailer.read(fileName, file.toPath())) != null) {
+            final Exchange exchange = exchange(event, fileName, merged);
+            exchange.getIn().setHeader(TAIL_OFFSET, chunk.offset());
+            exchange.getIn().setBody(endpoint.isTailLines() ? chunk.lines() : chunk.bytes());
+            process(exchange);
+            if(exchange.getException() != null) {
+                // read it again the next time
+                return false;
+            }
+            tailer.advance(fileName, chunk);
+        }
+        return true;
+    }
+
+    private Exchange exchange(Event event, String fileName, int merged) {
+        final Exchange exchange = getEndpoint().createExchange();
         exchange.getIn().setHeader("fileWatchEvent", event.name());
-        exchange.getIn().setBody(watchedFile);
-        process(exchange);
+        if(index != null) {
+            exchange.getIn().setHeader(Exchange.FILE_NAME, fileName);
+        }
+        if(merged > 0) {
+            exchange.getIn().setHeader(MERGED_EVENTS, merged);
+        }
+        return exchange;
     }
 
     private void process(Exchange exchange) throws Exception {
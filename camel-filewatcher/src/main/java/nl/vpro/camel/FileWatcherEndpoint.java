@@ -17,6 +17,7 @@
 package nl.vpro.camel;
 
 import org.apache.camel.*;
+import org.apache.camel.spi.StateRepository;
 import org.apache.camel.support.DefaultEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -28,6 +29,72 @@ class FileWatcherEndpoint extends DefaultEndpoint {
 
     private static final Logger LOG = LoggerFactory.getLogger(FileWatcherEndpoint.class);
 
+    /**
+     * How changes of the watched file are noticed.
+     */
+    public enum Mode {
+        /**
+         * Check the modification time of the file on every poll
+         */
+        POLL,
+        /**
+         * Register the directory of the file with a {@link java.nio.file.WatchService}, and check the file as soon as it reports a change. Falls back to {@link #POLL} if the file system doesn't support it.
+         */
+        WATCH_SERVICE
+    }
+
+    /**
+     * How is decided whether a file changed.
+     */
+    public enum ChangeDetection {
+        /**
+         * The modification time changed
+         */
+        LAST_MODIFIED,
+        /**
+         * The content changed. It is hashed (CRC32C) whenever the modification time or size changed, and only a different hash counts as a change.
+         */
+        HASH
+    }
+
+    private Mode mode = Mode.POLL;
+
+    private ChangeDetection changeDetection = ChangeDetection.LAST_MODIFIED;
+
+    private boolean recursive = false;
+
+    private String include;
+
+    private String exclude;
+
+    private boolean tail = false;
+
+    private boolean tailLines = false;
+
+    private boolean snapshot = false;
+
+    private boolean snapshotCopy = true;
+
+    private String snapshotDirectory;
+
+    private long quietPeriod = 0;
+
+    private boolean stableSize = false;
+
+    private StateRepository<String, String> stateRepository;
+
+    private String stateFile;
+
+    private String clusterNamespace;
+
+    private String leaderLockFile;
+
+    private boolean adaptive = false;
+
+    private long minDelay = 500;
+
+    private long maxDelay = 60000;
+
 
     FileWatcherEndpoint(CamelContext camelContext, String uri, FileWatcherComponent component) {
         super(uri, component);
@@ -50,4 +117,213 @@ class FileWatcherEndpoint extends DefaultEndpoint {
     public boolean isSingleton() {
         return true;
     }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets how changes are noticed, e.g. {@code mode=watchService}. Defaults to {@link Mode#POLL}.
+     */
+    public void setMode(Mode mode) {
+        this.mode = mode;
+    }
+
+    public ChangeDetection getChangeDetection() {
+        return changeDetection;
+    }
+
+    /**
+     * Sets how is decided whether a file changed, e.g. {@code changeDetection=hash} to ignore a {@code touch}, or a rewrite with the same content. Defaults to {@link ChangeDetection#LAST_MODIFIED}.
+     */
+    public void setChangeDetection(ChangeDetection changeDetection) {
+        this.changeDetection = changeDetection;
+    }
+
+    public boolean isRecursive() {
+        return recursive;
+    }
+
+    /**
+     * If the endpoint points to a directory, whether to watch its subdirectories too.
+     */
+    public void setRecursive(boolean recursive) {
+        this.recursive = recursive;
+    }
+
+    public String getInclude() {
+        return include;
+    }
+
+    /**
+     * If the endpoint points to a directory, a glob the paths of the files (relative to the directory) must match, like {@code *.xml}, or {@code **.xml} to include subdirectories.
+     */
+    public void setInclude(String include) {
+        this.include = include;
+    }
+
+    public String getExclude() {
+        return exclude;
+    }
+
+    /**
+     * If the endpoint points to a directory, a glob the paths of the files (relative to the directory) must not match.
+     */
+    public void setExclude(String exclude) {
+        this.exclude = exclude;
+    }
+
+    public boolean isTail() {
+        return tail;
+    }
+
+    /**
+     * Whether the body should be what was appended to the file since the previous exchange (a {@code byte[]}), instead of the file itself. A file which is truncated or replaced is read from the start again.
+     */
+    public void setTail(boolean tail) {
+        this.tail = tail;
+    }
+
+    public boolean isTailLines() {
+        return tailLines;
+    }
+
+    /**
+     * When {@link #isTail() tailing}, deliver the appended complete lines as a {@code List<String>} (UTF-8) instead. A line which is not finished yet is delivered with the next change.
+     */
+    public void setTailLines(boolean tailLines) {
+        this.tailLines = tailLines;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Whether the body should be a read-only, memory-mapped {@link java.nio.ByteBuffer} with the content of the file when the exchange was created, instead of the file itself. It does not change if the file is rewritten later. Not used when {@link #isTail() tailing}.
+     */
+    public void setSnapshot(boolean snapshot) {
+        this.snapshot = snapshot;
+    }
+
+    public boolean isSnapshotCopy() {
+        return snapshotCopy;
+    }
+
+    /**
+     * Whether a {@link #isSnapshot() snapshot} maps a copy of the file. If not, the file itself is mapped, which is only safe if it is never rewritten in place, but replaced (e.g. written elsewhere and then moved). If its size or modification time changed while mapping, a copy is mapped anyway. Defaults to {@code true}.
+     */
+    public void setSnapshotCopy(boolean snapshotCopy) {
+        this.snapshotCopy = snapshotCopy;
+    }
+
+    public String getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * The directory to make the copies for {@link #isSnapshot() snapshots} in, preferably on the same file system as the watched file. Defaults to the temporary directory of the jvm.
+     */
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public long getQuietPeriod() {
+        return quietPeriod;
+    }
+
+    /**
+     * The number of milliseconds a file must be unchanged before an exchange is sent for it. All changes in the meantime are merged into one exchange. Defaults to 0, sending every change right away.
+     */
+    public void setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+    }
+
+    public boolean isStableSize() {
+        return stableSize;
+    }
+
+    /**
+     * With a {@link #getQuietPeriod() quiet period}, whether the size of the file must also be unchanged during it, e.g. to wait for a copy which preserves the modification time.
+     */
+    public void setStableSize(boolean stableSize) {
+        this.stableSize = stableSize;
+    }
+
+    public StateRepository<String, String> getStateRepository() {
+        return stateRepository;
+    }
+
+    /**
+     * Where to keep what is known about the watched files (modification time, size and hash) between restarts, e.g. {@code stateRepository=#myRepository}. After a restart only files which changed meanwhile yield events, instead of {@link FileWatcherConsumer.Event#STARTED} for all of them. The state is stored by the absolute path of the watched file or directory.
+     */
+    public void setStateRepository(StateRepository<String, String> stateRepository) {
+        this.stateRepository = stateRepository;
+    }
+
+    public String getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * A file to keep the {@link #getStateRepository() state} in, using a {@link org.apache.camel.support.processor.state.FileStateRepository}, if no state repository is given.
+     */
+    public void setStateFile(String stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public String getClusterNamespace() {
+        return clusterNamespace;
+    }
+
+    /**
+     * If several nodes watch the same files, only the leader of this namespace of the {@link org.apache.camel.cluster.CamelClusterService} of the context watches, and the others wait to take over.
+     */
+    public void setClusterNamespace(String clusterNamespace) {
+        this.clusterNamespace = clusterNamespace;
+    }
+
+    public String getLeaderLockFile() {
+        return leaderLockFile;
+    }
+
+    /**
+     * If several nodes watch the same files, only the one holding a lock on this (shared) file watches, and the others wait to take over. Not used if there is a {@link #getClusterNamespace() cluster namespace}.
+     */
+    public void setLeaderLockFile(String leaderLockFile) {
+        this.leaderLockFile = leaderLockFile;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Whether to poll every {@link #getMinDelay() minDelay} right after a change, and to double the delay on every poll without changes, up to {@link #getMaxDelay() maxDelay}.
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public long getMinDelay() {
+        return minDelay;
+    }
+
+    /**
+     * With an {@link #isAdaptive() adaptive} delay, the shortest delay between polls in milliseconds. Defaults to 500.
+     */
+    public void setMinDelay(long minDelay) {
+        this.minDelay = minDelay;
+    }
+
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * With an {@link #isAdaptive() adaptive} delay, the longest delay between polls in milliseconds. Defaults to 60000.
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
 }
@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
+
+/**
+ * What is known about the state of a file: its modification time and size, and, with {@link FileWatcherEndpoint.ChangeDetection#HASH}, a CRC32C of its content.
+ * <p>
+ * The hash is only calculated again if the modification time or the size differ from the previous fingerprint, so an unchanged file is never read.
+ * @param hash The CRC32C of the content, or {@link #NO_HASH}
+ */
+record Fingerprint(long lastModified, long size, long hash) {
+
+    static final long NO_HASH = -1;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param previous The previous fingerprint of the file, or {@code null}. Returned as is if the modification time and size are unchanged.
+     * @param hash Whether to hash the content
+     */
+    static Fingerprint of(Path path, BasicFileAttributes attributes, Fingerprint previous, boolean hash) throws IOException {
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final long size = attributes.size();
+        if(previous != null && previous.lastModified == lastModified && previous.size == size && (previous.hash != NO_HASH || !hash)) {
+            return previous;
+        }
+        return new Fingerprint(lastModified, size, hash ? crc32c(path) : NO_HASH);
+    }
+
+    /**
+     * Whether the content differs from the previous fingerprint: by their hashes if both have one, otherwise by modification time.
+     */
+    boolean differs(Fingerprint previous) {
+        if(hash != NO_HASH && previous.hash != NO_HASH) {
+            return hash != previous.hash;
+        }
+        return lastModified != previous.lastModified;
+    }
+
+    /**
+     * Formats the fingerprints of files as one line, e.g. to store in a {@link org.apache.camel.spi.StateRepository}.
+     * @see #parse(String)
+     */
+    static String format(Map<String, Fingerprint> fingerprints) {
+        return fingerprints.entrySet().stream()
+            .map(e -> URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8) + ":" + e.getValue().lastModified + ":" + e.getValue().size + ":" + e.getValue().hash)
+            .collect(Collectors.joining(",", "[", "]"));
+    }
+
+    /**
+     * @see #format(Map)
+     */
+    static Map<String, Fingerprint> parse(String value) {
+        final Map<String, Fingerprint> result = new LinkedHashMap<>();
+        final String entries = value.substring(1, value.length() - 1);
+        if(entries.isEmpty()) {
+            return result;
+        }
+        for(String entry : entries.split(",")) {
+            final String[] fields = entry.split(":");
+            result.put(URLDecoder.decode(fields[0], StandardCharsets.UTF_8), new Fingerprint(Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3])));
+        }
+        return result;
+    }
+
+    static long crc32c(Path path) throws IOException {
+        final CRC32C crc = new CRC32C();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while(channel.read(buffer) >= 0) {
+                buffer.flip();
+                crc.update(buffer);
+                buffer.clear();
+            }
+        }
+        return crc.getValue();
+    }
+}
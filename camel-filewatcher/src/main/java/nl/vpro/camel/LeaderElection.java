@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.cluster.CamelClusterView;
+import org.apache.camel.support.cluster.ClusterServiceHelper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether this node is the one which should watch, if several nodes watch the same (shared) files.
+ */
+interface LeaderElection extends AutoCloseable {
+
+    /**
+     * Whether this node is the leader now. Called on every poll, so should be cheap.
+     */
+    boolean isLeader();
+
+    @Override
+    void close();
+
+    /**
+     * Uses the view on a namespace of the {@link org.apache.camel.cluster.CamelClusterService} of the context.
+     */
+    static LeaderElection cluster(CamelContext camelContext, String namespace) throws Exception {
+        final CamelClusterView view = ClusterServiceHelper.mandatoryLookupService(camelContext).getView(namespace);
+        return new LeaderElection() {
+            @Override
+            public boolean isLeader() {
+                return view.getLocalMember().isLeader();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    view.getClusterService().releaseView(view);
+                } catch (Exception e) {
+                    LoggerFactory.getLogger(LeaderElection.class).warn("Could not release {}: {}", view, e.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * Uses an exclusive lock on a file, see {@link FileLockLeaderElection}.
+     */
+    static LeaderElection fileLock(Path lockFile) {
+        return new FileLockLeaderElection(lockFile);
+    }
+
+    /**
+     * The node which holds an exclusive {@link FileLock} on the lock file is the leader. The others try to get it on every {@link #isLeader() check}, and get it once the leader releases it, or dies.
+     * <p>
+     * On NFS this needs working (v4, or v3 with lockd) locking. Within one JVM only one consumer can hold the lock.
+     */
+    class FileLockLeaderElection implements LeaderElection {
+
+        private static final Logger LOG = LoggerFactory.getLogger(FileLockLeaderElection.class);
+
+        private final Path lockFile;
+        private FileChannel channel;
+        private FileLock lock;
+
+        FileLockLeaderElection(Path lockFile) {
+            this.lockFile = lockFile;
+        }
+
+        @Override
+        public synchronized boolean isLeader() {
+            if(lock != null && lock.isValid()) {
+                return true;
+            }
+            try {
+                if(channel == null || !channel.isOpen()) {
+                    channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                }
+                lock = channel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // held by another consumer in this jvm
+                lock = null;
+            } catch (IOException e) {
+                LOG.warn("Could not lock {}: {}", lockFile, e.getMessage());
+                lock = null;
+            }
+            return lock != null;
+        }
+
+        @Override
+        public synchronized void close() {
+            try {
+                if(lock != null) {
+                    lock.release();
+                }
+                if(channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                LOG.warn("Could not release {}: {}", lockFile, e.getMessage());
+            }
+            lock = null;
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Takes read-only, memory-mapped snapshots of files, which don't change when the file is rewritten afterwards.
+ * <p>
+ * Mapping the file itself would not do: a rewrite in place would show through, and a truncation would even make reading the mapping crash. So the file is first copied to a temporary file (by the kernel, using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}, so without passing the heap), which is mapped, and then deleted right away. The mapping stays valid until the buffer is garbage collected, and only then the disk space is released.
+ * <p>
+ * Files which are only ever replaced, never rewritten, can be mapped without copying them. Then only the size, modification time and file key are checked to be unchanged after mapping.
+ */
+class Snapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Snapshot.class);
+
+    private Snapshot() {
+    }
+
+    /**
+     * @param copy Whether to map a copy of the file, rather than the file itself
+     * @param directory Where to make the copy, or {@code null} for the default temporary directory
+     * @return A read-only buffer with the current content of the file
+     */
+    static MappedByteBuffer of(Path path, boolean copy, Path directory) throws IOException {
+        if(!copy) {
+            final BasicFileAttributes before = Files.readAttributes(path, BasicFileAttributes.class);
+            final MappedByteBuffer mapped = map(path);
+            final BasicFileAttributes after = Files.readAttributes(path, BasicFileAttributes.class);
+            if(mapped.capacity() == after.size() && before.size() == after.size()
+                && before.lastModifiedTime().equals(after.lastModifiedTime())
+                && Objects.equals(before.fileKey(), after.fileKey())) {
+                return mapped;
+            }
+            LOG.debug("{} changed while mapping it, mapping a copy instead", path);
+        }
+        final Path copied = directory == null ? Files.createTempFile("filewatcher", ".snapshot") : Files.createTempFile(directory, "filewatcher", ".snapshot");
+        try {
+            try (FileChannel source = FileChannel.open(path, StandardOpenOption.READ);
+                 FileChannel target = FileChannel.open(copied, StandardOpenOption.WRITE)) {
+                final long size = source.size();
+                checkSize(path, size);
+                long position = 0;
+                while(position < size) {
+                    final long transferred = source.transferTo(position, size - position, target);
+                    if(transferred <= 0) {
+                        // truncated meanwhile
+                        break;
+                    }
+                    position += transferred;
+                }
+            }
+            return map(copied);
+        } finally {
+            try {
+                Files.delete(copied);
+            } catch (IOException e) {
+                // e.g. on windows, a mapped file can't be deleted
+                LOG.debug("Could not delete {} yet: {}", copied, e.getMessage());
+                copied.toFile().deleteOnExit();
+            }
+        }
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            checkSize(path, size);
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private static void checkSize(Path path, long size) throws IOException {
+        if(size > Integer.MAX_VALUE) {
+            throw new IOException(path + " is too large to map (" + size + " bytes)");
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers up to where files were read, so only what was appended since is delivered, like {@code tail -f}.
+ * <p>
+ * If a file is truncated (it is smaller than what was read), or replaced by another one (its {@link BasicFileAttributes#fileKey() file key}, like the inode, differs), e.g. when a log is rotated, it is read from the start again.
+ */
+class Tailer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Tailer.class);
+
+    /**
+     * The maximum number of bytes {@link #read(String, Path) read} at once. What was appended beyond that is read by the next call.
+     */
+    static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Bytes appended to a file.
+     * @param offset The position in the file of the first byte
+     * @param bytes The bytes as read
+     * @param length The number of bytes which are part of the chunk. Only when reading lines this can be less than the length of {@code bytes}: the rest is an unfinished line
+     * @param fileKey The file key of the file, see {@link BasicFileAttributes#fileKey()}
+     */
+    record Chunk(long offset, byte[] bytes, int length, Object fileKey) {
+
+        long next() {
+            return offset + length;
+        }
+
+        /**
+         * @return The bytes as UTF-8 lines, without their line endings
+         */
+        List<String> lines() {
+            final List<String> lines = new ArrayList<>();
+            for(String line : new String(bytes, 0, length, StandardCharsets.UTF_8).split("\n")) {
+                lines.add(line.endsWith("\r") ? line.substring(0, line.length() - 1) : line);
+            }
+            return lines;
+        }
+    }
+
+    private record Position(Object fileKey, long offset) {
+    }
+
+    private final boolean lines;
+
+    private final Map<String, Position> positions = new HashMap<>();
+
+    /**
+     * @param lines Whether to only deliver complete lines. A line which is still being written is left for the next read.
+     */
+    Tailer(boolean lines) {
+        this.lines = lines;
+    }
+
+    /**
+     * Reads what was appended to the file since the last {@link #advance(String, Chunk) advance}, but at most {@value #MAX_CHUNK_SIZE} bytes. When reading lines, a line longer than that is split.
+     * @param key The key to remember the position of the file by
+     * @return The appended bytes, or {@code null} if there are none
+     */
+    synchronized Chunk read(String key, Path path) throws IOException {
+        while(true) {
+            final Object fileKey = fileKey(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if(Objects.equals(fileKey, fileKey(path))) {
+                    return read(key, path, channel, fileKey);
+                }
+                // replaced while opening it, so it's unknown which of the two the channel reads
+                LOG.debug("{} was replaced while opening it, trying again", path);
+            }
+        }
+    }
+
+    private Chunk read(String key, Path path, FileChannel channel, Object fileKey) throws IOException {
+        final long size = channel.size();
+        final Position position = positions.get(key);
+        long offset = position == null ? 0 : position.offset();
+        if(position != null && (size < offset || !Objects.equals(fileKey, position.fileKey()))) {
+            LOG.info("{} was truncated or rotated, reading it from the start", path);
+            offset = 0;
+        }
+        if(size <= offset) {
+            return null;
+        }
+        byte[] bytes = new byte[(int) Math.min(size - offset, MAX_CHUNK_SIZE)];
+        final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        while(buffer.hasRemaining() && channel.read(buffer, offset + buffer.position()) >= 0) {
+            // read until the size we saw
+        }
+        if(buffer.hasRemaining()) {
+            // truncated meanwhile
+            bytes = Arrays.copyOf(bytes, buffer.position());
+        }
+        int length = bytes.length;
+        if(lines) {
+            while(length > 0 && bytes[length - 1] != '\n') {
+                length--;
+            }
+            if(length == 0) {
+                if(bytes.length < MAX_CHUNK_SIZE) {
+                    return null;
+                }
+                // a line which doesn't fit in a chunk
+                length = bytes.length;
+            }
+        }
+        return new Chunk(offset, bytes, length, fileKey);
+    }
+
+    /**
+     * Remembers that the chunk was delivered.
+     */
+    synchronized void advance(String key, Chunk chunk) {
+        positions.put(key, new Position(chunk.fileKey(), chunk.next()));
+    }
+
+    /**
+     * Skips what is in the file now, e.g. when it already existed when watching started.
+     */
+    synchronized void skip(String key, Path path) throws IOException {
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        positions.put(key, new Position(attributes.fileKey(), attributes.size()));
+    }
+
+    /**
+     * Continues at the given offset, e.g. what was read before a restart, unless the file is smaller by now.
+     */
+    synchronized void restore(String key, Path path, long offset) throws IOException {
+        if(!Files.exists(path)) {
+            return;
+        }
+        final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        if(attributes.size() >= offset) {
+            positions.put(key, new Position(attributes.fileKey(), offset));
+        }
+    }
+
+    private static Object fileKey(Path path) throws IOException {
+        return Files.readAttributes(path, BasicFileAttributes.class).fileKey();
+    }
+
+    synchronized void remove(String key) {
+        positions.remove(key);
+    }
+
+    synchronized void clear() {
+        positions.clear();
+    }
+}
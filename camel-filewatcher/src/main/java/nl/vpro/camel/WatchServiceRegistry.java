@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.vpro.camel;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Shares one {@link WatchService} between all consumers of a {@link FileWatcherComponent}. Every directory is registered only once, however many files in it are watched, and one thread takes the events, handing them to the {@link Listener listeners} of their directory on a pool of {@link FileWatcherComponent#getWatchDispatcherPoolSize()} threads.
+ * <p>
+ * The threads are only running while there are registrations.
+ */
+class WatchServiceRegistry {
+
+    private static final Logger LOG = LoggerFactory.getLogger(WatchServiceRegistry.class);
+
+    /**
+     * Receives the events of a directory.
+     */
+    interface Listener {
+        /**
+         * @param directory The (absolute) directory the events are about
+         * @param events The events of the directory, possibly including an {@link StandardWatchEventKinds#OVERFLOW overflow}, meaning that events may have been lost
+         */
+        void changed(Path directory, List<WatchEvent<?>> events);
+
+        /**
+         * The directory can't be watched anymore (e.g. it was deleted). The listener is not registered for it anymore.
+         */
+        void invalidated(Path directory);
+    }
+
+    private final CamelContext camelContext;
+    private final Object source;
+    private final int dispatcherPoolSize;
+
+    private final Map<Path, Directory> directories = new HashMap<>();
+    private final Map<WatchKey, Directory> keys = new HashMap<>();
+
+    private WatchService watchService;
+    private ExecutorService taker;
+    private ScheduledExecutorService dispatcher;
+
+    WatchServiceRegistry(CamelContext camelContext, Object source, int dispatcherPoolSize) {
+        this.camelContext = camelContext;
+        this.source = source;
+        this.dispatcherPoolSize = Math.max(1, dispatcherPoolSize);
+    }
+
+    /**
+     * Registers interest in the events of the directory.
+     * @throws IOException If the directory can't be watched
+     * @throws UnsupportedOperationException If its file system doesn't support watching
+     */
+    synchronized Registration register(Path directory, Listener listener) throws IOException {
+        final Path key = directory.toAbsolutePath().normalize();
+        Directory watched = directories.get(key);
+        if(watched == null) {
+            start(key.getFileSystem());
+            final WatchKey watchKey;
+            try {
+                watchKey = key.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            } catch (IOException | RuntimeException e) {
+                stopIfUnused();
+                throw e;
+            }
+            watched = new Directory(key, watchKey);
+            directories.put(key, watched);
+            keys.put(watchKey, watched);
+            LOG.debug("Watching {}", key);
+        }
+        watched.listeners.add(listener);
+        return new Registration(watched, listener);
+    }
+
+    /**
+     * @return The number of directories currently watched
+     */
+    synchronized int getDirectoryCount() {
+        return directories.size();
+    }
+
+    /**
+     * Removes all registrations, and stops the threads.
+     */
+    synchronized void close() {
+        directories.values().forEach(d -> d.key.cancel());
+        directories.clear();
+        keys.clear();
+        stopIfUnused();
+    }
+
+    private void start(FileSystem fileSystem) throws IOException {
+        if(watchService != null) {
+            return;
+        }
+        watchService = fileSystem.newWatchService();
+        dispatcher = camelContext.getExecutorServiceManager().newScheduledThreadPool(source, "FileWatcherDispatcher", dispatcherPoolSize);
+        taker = camelContext.getExecutorServiceManager().newSingleThreadExecutor(source, "FileWatcher");
+        final WatchService service = watchService;
+        taker.submit(() -> take(service));
+    }
+
+    private void stopIfUnused() {
+        if(!directories.isEmpty() || watchService == null) {
+            return;
+        }
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            LOG.warn("Error closing watch service: {}", e.getMessage());
+        }
+        watchService = null;
+        camelContext.getExecutorServiceManager().shutdownNow(taker);
+        camelContext.getExecutorServiceManager().shutdown(dispatcher);
+        taker = null;
+        dispatcher = null;
+    }
+
+    private void take(WatchService service) {
+        try {
+            while(true) {
+                final WatchKey key = service.take();
+                final List<WatchEvent<?>> events = key.pollEvents();
+                final boolean valid = key.reset();
+                synchronized (this) {
+                    final Directory directory = keys.get(key);
+                    if(directory == null) {
+                        continue;
+                    }
+                    for(Listener listener : directory.listeners) {
+                        dispatcher.execute(() -> {
+                            if(!events.isEmpty()) {
+                                listener.changed(directory.path, events);
+                            }
+                            if(!valid) {
+                                listener.invalidated(directory.path);
+                            }
+                        });
+                    }
+                    if(!valid) {
+                        LOG.warn("{} can't be watched anymore", directory.path);
+                        directories.remove(directory.path);
+                        keys.remove(key);
+                        stopIfUnused();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // stopped
+        }
+    }
+
+    private synchronized void unregister(Directory directory, Listener listener) {
+        directory.listeners.remove(listener);
+        if(directory.listeners.isEmpty() && directories.get(directory.path) == directory) {
+            directory.key.cancel();
+            directories.remove(directory.path);
+            keys.remove(directory.key);
+            LOG.debug("Stopped watching {}", directory.path);
+            stopIfUnused();
+        }
+    }
+
+    private static class Directory {
+        final Path path;
+        final WatchKey key;
+        final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+        Directory(Path path, WatchKey key) {
+            this.path = path;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The interest of one listener in a directory, until closed.
+     */
+    class Registration implements AutoCloseable {
+        private final Directory directory;
+        private final Listener listener;
+
+        private Registration(Directory directory, Listener listener) {
+            this.directory = directory;
+            this.listener = listener;
+        }
+
+        /**
+         * Hands the task to the threads of the registry, e.g. to do an initial check outside the thread starting the consumer.
+         */
+        void execute(Runnable task) {
+            synchronized (WatchServiceRegistry.this) {
+                if(dispatcher != null) {
+                    dispatcher.execute(task);
+                }
+            }
+        }
+
+        /**
+         * Runs the task on the threads of the registry after the given delay, e.g. when events are {@link Debouncer debounced}.
+         */
+        void schedule(Runnable task, long delayMillis) {
+            synchronized (WatchServiceRegistry.this) {
+                if(dispatcher != null) {
+                    dispatcher.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        @Override
+        public void close() {
+            unregister(directory, listener);
+        }
+    }
+}
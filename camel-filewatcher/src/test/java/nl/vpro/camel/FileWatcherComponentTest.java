@@ -18,19 +18,30 @@ package nl.vpro.camel;
 
 import java.io.File;
 import java.io.FileWriter;
-import java.util.List;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
+import org.apache.camel.Consumer;
+import org.apache.camel.Endpoint;
 import org.apache.camel.Exchange;
 import org.apache.camel.builder.RouteBuilder;
 import org.apache.camel.component.mock.MockEndpoint;
+import org.apache.camel.support.DefaultPollingConsumerPollStrategy;
 import org.apache.camel.test.junit5.CamelTestSupport;
+import org.apache.camel.util.FileUtil;
 import org.junit.jupiter.api.*;
 
 import static org.apache.camel.component.mock.MockEndpoint.assertIsSatisfied;
 import static org.apache.camel.component.mock.MockEndpoint.resetMocks;
 import static org.apache.camel.test.junit5.TestSupport.assertInMessageBodyEquals;
 import static org.apache.camel.test.junit5.TestSupport.assertInMessageHeader;
-import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.*;
 
 @SuppressWarnings("ResultOfMethodCallIgnored")
 public class FileWatcherComponentTest extends CamelTestSupport {
@@ -112,6 +123,636 @@ public class FileWatcherComponentTest extends CamelTestSupport {
         assertInMessageBodyEquals(exchanges.get(0), "Created");
     }
 
+    @Test
+    public void testWatchService() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path watched = directory.resolve("watched.txt");
+        try {
+            write(watched, "Hello world");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + watched + "?mode=watchService")
+                        .routeId("watched")
+                        .to("mock:watched");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:watched");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+            assertTrue(((FileWatcherConsumer) context.getRoute("watched").getConsumer()).isWatching());
+
+            mock.reset();
+            mock.expectedHeaderReceived("fileWatchEvent", "UPDATED");
+            mock.expectedBodiesReceived("Update");
+            write(watched, "Update");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedHeaderReceived("fileWatchEvent", "DELETED");
+            Files.delete(watched);
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            mock.expectedBodiesReceived("Created");
+            write(watched, "Created");
+            assertIsSatisfied(context);
+        } finally {
+            Files.deleteIfExists(watched);
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testSharedWatchService() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        try {
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    for (String name : List.of("a", "b")) {
+                        from("filewatcher:" + directory.resolve(name + ".txt") + "?mode=watchService")
+                            .routeId(name)
+                            .to("mock:" + name);
+                    }
+                }
+            });
+            final WatchServiceRegistry registry = context.getComponent("filewatcher", FileWatcherComponent.class).watchServiceRegistry();
+            assertEquals(1, registry.getDirectoryCount());
+
+            MockEndpoint a = getMockEndpoint("mock:a");
+            MockEndpoint b = getMockEndpoint("mock:b");
+            a.expectedBodiesReceived("A");
+            a.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            b.expectedBodiesReceived("B");
+            write(directory.resolve("a.txt"), "A");
+            write(directory.resolve("b.txt"), "B");
+            assertIsSatisfied(context);
+
+            context.getRouteController().stopRoute("a");
+            assertEquals(1, registry.getDirectoryCount());
+            context.getRouteController().stopRoute("b");
+            assertEquals(0, registry.getDirectoryCount());
+        } finally {
+            for (String name : List.of("a", "b")) {
+                Files.deleteIfExists(directory.resolve(name + ".txt"));
+            }
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void testWatchServiceFallback() throws Exception {
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("filewatcher:" + filePath + ".missing/file.txt?mode=watchService")
+                    .routeId("missing")
+                    .to("mock:missing");
+            }
+        });
+        assertFalse(((FileWatcherConsumer) context.getRoute("missing").getConsumer()).isWatching());
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+        testDirectory("poll");
+    }
+
+    @Test
+    public void testDirectoryWatchService() throws Exception {
+        testDirectory("watchService");
+    }
+
+    private void testDirectory(String mode) throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        try {
+            write(directory.resolve("existing.txt"), "existing");
+            write(directory.resolve("ignored.xml"), "ignored");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?mode=" + mode + "&recursive=true&include=**.txt&exclude=**/skip*")
+                        .routeId("directory")
+                        .to("mock:directory");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:directory");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            mock.expectedHeaderReceived(Exchange.FILE_NAME, "existing.txt");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedMessageCount(2);
+            Files.createDirectories(directory.resolve("sub"));
+            write(directory.resolve("sub/new.txt"), "new");
+            write(directory.resolve("sub/skipped.txt"), "skipped");
+            write(directory.resolve("existing.txt"), "updated");
+            assertIsSatisfied(context);
+            final Map<String, String> events = new TreeMap<>();
+            mock.getExchanges().forEach(e -> events.put(e.getIn().getHeader(Exchange.FILE_NAME, String.class), e.getIn().getHeader("fileWatchEvent", String.class)));
+            assertEquals(Map.of("existing.txt", "UPDATED", "sub/new.txt", "CREATED"), events);
+
+            mock.reset();
+            mock.expectedHeaderReceived("fileWatchEvent", "DELETED");
+            mock.expectedHeaderReceived(Exchange.FILE_NAME, "sub/new.txt");
+            Files.delete(directory.resolve("sub/new.txt"));
+            assertIsSatisfied(context);
+            assertNull(mock.getExchanges().get(0).getIn().getBody());
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testHashChangeDetection() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path hashed = directory.resolve("hashed.txt");
+        try {
+            write(hashed, "content");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + hashed + "?changeDetection=hash")
+                        .routeId("file")
+                        .to("mock:hashed");
+                    from("filewatcher:" + directory + "?changeDetection=hash")
+                        .routeId("directory")
+                        .to("mock:hashed");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:hashed");
+            mock.expectedMessageCount(2);
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedMessageCount(0);
+            mock.setAssertPeriod(500);
+            Files.setLastModifiedTime(hashed, FileTime.fromMillis(System.currentTimeMillis() + 5000));
+            write(hashed, "content");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedMessageCount(2);
+            mock.expectedHeaderReceived("fileWatchEvent", "UPDATED");
+            mock.expectedBodiesReceived("changed", "changed");
+            write(hashed, "changed");
+            Files.setLastModifiedTime(hashed, FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testTail() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path tailed = directory.resolve("tailed.log");
+        final long now = System.currentTimeMillis();
+        try {
+            Files.writeString(tailed, "old\n");
+            Files.setLastModifiedTime(tailed, FileTime.fromMillis(now - 10000));
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + tailed + "?tail=true&tailLines=true")
+                        .routeId("tail")
+                        .to("mock:tail");
+                }
+            });
+            final FileWatcherConsumer consumer = (FileWatcherConsumer) context.getRoute("tail").getConsumer();
+            // only the explicit polls below check the file
+            consumer.suspend();
+            MockEndpoint mock = getMockEndpoint("mock:tail");
+            mock.expectedMessageCount(0);
+            // what is there at the start is skipped
+            consumer.poll();
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedHeaderReceived("fileWatchEvent", "UPDATED");
+            mock.expectedHeaderReceived(FileWatcherConsumer.TAIL_OFFSET, 4L);
+            mock.expectedBodiesReceived((Object) new ArrayList<>(List.of("one", "two")));
+            Files.writeString(tailed, "one\ntwo\nthr", StandardOpenOption.APPEND);
+            Files.setLastModifiedTime(tailed, FileTime.fromMillis(now + 1000));
+            consumer.poll();
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedHeaderReceived(FileWatcherConsumer.TAIL_OFFSET, 12L);
+            mock.expectedBodiesReceived((Object) new ArrayList<>(List.of("three")));
+            Files.writeString(tailed, "ee\r\n", StandardOpenOption.APPEND);
+            Files.setLastModifiedTime(tailed, FileTime.fromMillis(now + 2000));
+            consumer.poll();
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedHeaderReceived(FileWatcherConsumer.TAIL_OFFSET, 0L);
+            mock.expectedBodiesReceived((Object) new ArrayList<>(List.of("rotated")));
+            write(tailed, "rotated\n");
+            Files.setLastModifiedTime(tailed, FileTime.fromMillis(now + 3000));
+            consumer.poll();
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testTailChunks() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path tailed = directory.resolve("tailed.bin");
+        try {
+            Files.write(tailed, new byte[0]);
+            Files.setLastModifiedTime(tailed, FileTime.fromMillis(System.currentTimeMillis() - 10000));
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + tailed + "?tail=true")
+                        .routeId("tail")
+                        .to("mock:tail");
+                }
+            });
+            final FileWatcherConsumer consumer = (FileWatcherConsumer) context.getRoute("tail").getConsumer();
+            consumer.poll();
+
+            MockEndpoint mock = getMockEndpoint("mock:tail");
+            mock.expectedMessageCount(3);
+            // what was appended at once, is still sent in bounded chunks
+            Files.write(tailed, new byte[2 * Tailer.MAX_CHUNK_SIZE + 10], StandardOpenOption.APPEND);
+            consumer.poll();
+            assertIsSatisfied(context);
+            assertEquals(List.of(0L, (long) Tailer.MAX_CHUNK_SIZE, 2L * Tailer.MAX_CHUNK_SIZE),
+                mock.getExchanges().stream().map(e -> e.getIn().getHeader(FileWatcherConsumer.TAIL_OFFSET)).toList());
+            assertEquals(List.of(Tailer.MAX_CHUNK_SIZE, Tailer.MAX_CHUNK_SIZE, 10),
+                mock.getExchanges().stream().map(e -> e.getIn().getBody(byte[].class).length).toList());
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path snapshotted = directory.resolve("snapshotted.json");
+        final Path copies = Files.createDirectories(directory.resolve("copies"));
+        try {
+            Files.writeString(snapshotted, "{\"version\": 1}");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + snapshotted + "?snapshot=true&snapshotDirectory=" + copies)
+                        .routeId("snapshot")
+                        .to("mock:snapshot");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:snapshot");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+            final ByteBuffer body = mock.getExchanges().get(0).getIn().getBody(ByteBuffer.class);
+            assertTrue(body.isReadOnly());
+            // the copy is deleted right away, only the mapping keeps it
+            try (Stream<Path> files = Files.list(copies)) {
+                assertEquals(0, files.count());
+            }
+
+            // rewritten in place
+            Files.writeString(snapshotted, "{\"version\": 2, \"more\": true}");
+            assertEquals("{\"version\": 1}", StandardCharsets.UTF_8.decode(body).toString());
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testSnapshotWithoutCopy() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path snapshotted = directory.resolve("snapshotted.json");
+        try {
+            Files.writeString(snapshotted, "{\"version\": 1}");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + snapshotted + "?snapshot=true&snapshotCopy=false")
+                        .routeId("snapshot")
+                        .to("mock:snapshot");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:snapshot");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+            final ByteBuffer body = mock.getExchanges().get(0).getIn().getBody(ByteBuffer.class);
+            assertTrue(body.isReadOnly());
+
+            // replaced, so the mapping still has the old file
+            write(snapshotted, "{\"version\": 2, \"more\": true}");
+            assertEquals("{\"version\": 1}", StandardCharsets.UTF_8.decode(body).toString());
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testStateFile() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path state = Files.createTempDirectory("filewatcher-state").resolve("state.properties");
+        try {
+            write(directory.resolve("a.txt"), "a");
+            write(directory.resolve("b.txt"), "b");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?stateFile=" + state)
+                        .routeId("state")
+                        .to("mock:state");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:state");
+            mock.expectedMessageCount(2);
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+            context.getRouteController().stopRoute("state");
+            assertTrue(Files.exists(state));
+
+            mock.reset();
+            mock.expectedMessageCount(3);
+            write(directory.resolve("a.txt"), "changed");
+            Files.setLastModifiedTime(directory.resolve("a.txt"), FileTime.fromMillis(System.currentTimeMillis() + 10000));
+            Files.delete(directory.resolve("b.txt"));
+            write(directory.resolve("c.txt"), "c");
+            context.getRouteController().startRoute("state");
+            assertIsSatisfied(context);
+            final Map<String, String> events = new TreeMap<>();
+            mock.getExchanges().forEach(e -> events.put(e.getIn().getHeader(Exchange.FILE_NAME, String.class), e.getIn().getHeader("fileWatchEvent", String.class)));
+            assertEquals(Map.of("a.txt", "UPDATED", "b.txt", "DELETED", "c.txt", "CREATED"), events);
+
+            mock.reset();
+            mock.expectedMessageCount(0);
+            mock.setAssertPeriod(2000);
+            context.getRouteController().stopRoute("state");
+            context.getRouteController().startRoute("state");
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+            FileUtil.removeDir(state.getParent().toFile());
+        }
+    }
+
+    @Test
+    public void testLeaderLockFile() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path lock = Files.createTempFile("filewatcher", ".lock");
+        try {
+            write(directory.resolve("shared.txt"), "shared");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    // two 'nodes', so two distinct endpoints
+                    from("filewatcher:" + directory + "?leaderLockFile=" + lock + "&mode=poll")
+                        .routeId("node1")
+                        .to("mock:node1");
+                    from("filewatcher:" + directory + "?leaderLockFile=" + lock + "&recursive=false")
+                        .routeId("node2")
+                        .to("mock:node2");
+                }
+            });
+            final MockEndpoint all = getMockEndpoint("mock:all");
+            all.expectedMessageCount(1);
+            all.setAssertPeriod(1000);
+            getMockEndpoint("mock:node1").whenAnyExchangeReceived(e -> template.send("mock:all", e));
+            getMockEndpoint("mock:node2").whenAnyExchangeReceived(e -> template.send("mock:all", e));
+            assertIsSatisfied(context);
+            final String leader = getMockEndpoint("mock:node1").getReceivedCounter() == 1 ? "node1" : "node2";
+            final String follower = leader.equals("node1") ? "node2" : "node1";
+
+            all.reset();
+            final MockEndpoint takeOver = getMockEndpoint("mock:" + follower);
+            takeOver.expectedMessageCount(1);
+            takeOver.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            context.getRouteController().stopRoute(leader);
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+            Files.deleteIfExists(lock);
+        }
+    }
+
+    @Test
+    public void testLeaderLockFileWithStateFile() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path state = Files.createTempDirectory("filewatcher-state").resolve("state.properties");
+        final Path lock = Files.createTempFile("filewatcher", ".lock");
+        try {
+            write(directory.resolve("a.txt"), "a");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?leaderLockFile=" + lock + "&stateFile=" + state + "&mode=poll")
+                        .routeId("node1")
+                        .to("mock:node1");
+                    from("filewatcher:" + directory + "?leaderLockFile=" + lock + "&stateFile=" + state)
+                        .routeId("node2")
+                        .to("mock:node2");
+                }
+            });
+            final MockEndpoint all = getMockEndpoint("mock:all");
+            all.expectedMessageCount(1);
+            getMockEndpoint("mock:node1").whenAnyExchangeReceived(e -> template.send("mock:all", e));
+            getMockEndpoint("mock:node2").whenAnyExchangeReceived(e -> template.send("mock:all", e));
+            assertIsSatisfied(context);
+            final String leader = getMockEndpoint("mock:node1").getReceivedCounter() == 1 ? "node1" : "node2";
+            final String follower = leader.equals("node1") ? "node2" : "node1";
+
+            // the state of the leader changes while the follower waits
+            all.reset();
+            all.expectedMessageCount(1);
+            all.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            write(directory.resolve("b.txt"), "b");
+            assertIsSatisfied(context);
+
+            // the follower continues with that, so only sees the new file
+            all.reset();
+            final MockEndpoint takeOver = getMockEndpoint("mock:" + follower);
+            takeOver.expectedMessageCount(1);
+            takeOver.expectedHeaderReceived(Exchange.FILE_NAME, "c.txt");
+            takeOver.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            takeOver.setAssertPeriod(2000);
+            context.getRouteController().stopRoute(leader);
+            write(directory.resolve("c.txt"), "c");
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+            FileUtil.removeDir(state.getParent().toFile());
+            Files.deleteIfExists(lock);
+        }
+    }
+
+    @Test
+    public void testAdaptiveDelay() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path adaptive = directory.resolve("adaptive.txt");
+        try {
+            write(adaptive, "idle");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + adaptive + "?adaptive=true&minDelay=100&maxDelay=800")
+                        .routeId("adaptive")
+                        .to("mock:adaptive");
+                }
+            });
+            final FileWatcherConsumer consumer = (FileWatcherConsumer) context.getRoute("adaptive").getConsumer();
+            MockEndpoint mock = getMockEndpoint("mock:adaptive");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+            final long deadline = System.currentTimeMillis() + 5000;
+            while(consumer.getCurrentDelay() < 800 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(800, consumer.getCurrentDelay());
+            // and isn't woken up in between
+            final AtomicInteger polls = new AtomicInteger();
+            consumer.setPollStrategy(new DefaultPollingConsumerPollStrategy() {
+                @Override
+                public boolean begin(Consumer c, Endpoint e) {
+                    polls.incrementAndGet();
+                    return true;
+                }
+            });
+            Thread.sleep(2000);
+            assertTrue(polls.get() <= 3, polls + " polls");
+
+            mock.reset();
+            mock.expectedMessageCount(1);
+            mock.expectedHeaderReceived("fileWatchEvent", "UPDATED");
+            write(adaptive, "changed");
+            assertIsSatisfied(context);
+            // adapted once the exchange is handled
+            Thread.sleep(50);
+            assertTrue(consumer.getCurrentDelay() < 800);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testQuietPeriod() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        try {
+            write(directory.resolve("existing.txt"), "existing");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?mode=watchService&quietPeriod=300&stableSize=true")
+                        .routeId("quiet")
+                        .to("mock:quiet");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:quiet");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.expectedMessageCount(1);
+            mock.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            mock.expectedHeaderReceived(Exchange.FILE_NAME, "burst.txt");
+            mock.expectedBodiesReceived("3");
+            mock.setAssertPeriod(500);
+            for (int i = 1; i <= 3; i++) {
+                Files.writeString(directory.resolve("burst.txt"), String.valueOf(i));
+                Thread.sleep(50);
+            }
+            write(directory.resolve("gone.txt"), "gone");
+            Files.delete(directory.resolve("gone.txt"));
+            assertIsSatisfied(context);
+            assertTrue(mock.getExchanges().get(0).getIn().getHeader(FileWatcherConsumer.MERGED_EVENTS, Integer.class) >= 1);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testQuietPeriodRetry() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        try {
+            write(directory.resolve("existing.txt"), "existing");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?mode=watchService&quietPeriod=200")
+                        .routeId("quiet")
+                        .to("mock:quiet");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:quiet");
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+
+            mock.reset();
+            mock.whenExchangeReceived(1, e -> {
+                throw new IllegalStateException("Failing the first time");
+            });
+            // the failed merged change is offered again
+            mock.expectedMessageCount(2);
+            mock.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            mock.expectedHeaderReceived(Exchange.FILE_NAME, "retried.txt");
+            mock.setAssertPeriod(1000);
+            write(directory.resolve("retried.txt"), "retried");
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+        }
+    }
+
+    @Test
+    public void testQuietPeriodWithStateFile() throws Exception {
+        final Path directory = Files.createTempDirectory("filewatcher");
+        final Path state = Files.createTempDirectory("filewatcher-state").resolve("state.properties");
+        try {
+            write(directory.resolve("a.txt"), "a");
+            context.addRoutes(new RouteBuilder() {
+                @Override
+                public void configure() {
+                    from("filewatcher:" + directory + "?quietPeriod=1000&stateFile=" + state)
+                        .routeId("quiet")
+                        .to("mock:quiet");
+                }
+            });
+            MockEndpoint mock = getMockEndpoint("mock:quiet");
+            mock.expectedMessageCount(1);
+            mock.expectedHeaderReceived("fileWatchEvent", "STARTED");
+            assertIsSatisfied(context);
+
+            // stopped while the change is held back
+            write(directory.resolve("b.txt"), "b");
+            ((FileWatcherConsumer) context.getRoute("quiet").getConsumer()).poll();
+            context.getRouteController().stopRoute("quiet");
+
+            // so it was not saved as handled
+            mock.reset();
+            mock.expectedMessageCount(1);
+            mock.expectedHeaderReceived("fileWatchEvent", "CREATED");
+            mock.expectedHeaderReceived(Exchange.FILE_NAME, "b.txt");
+            mock.setAssertPeriod(1500);
+            context.getRouteController().startRoute("quiet");
+            assertIsSatisfied(context);
+        } finally {
+            FileUtil.removeDir(directory.toFile());
+            FileUtil.removeDir(state.getParent().toFile());
+        }
+    }
+
+    /**
+     * Writes the file in one go, so a watch service reports only one change.
+     */
+    private static void write(Path file, String content) throws IOException {
+        final Path temp = Files.createTempFile("filewatcher", ".tmp");
+        Files.writeString(temp, content);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     @Override
     protected RouteBuilder createRouteBuilder() {
         return new RouteBuilder() {
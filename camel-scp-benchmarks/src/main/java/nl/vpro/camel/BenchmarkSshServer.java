@@ -0,0 +1,110 @@
+package nl.vpro.camel;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.sshd.common.config.keys.KeyUtils;
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyEncryptionContext;
+import org.apache.sshd.common.config.keys.writer.openssh.OpenSSHKeyPairResourceWriter;
+import org.apache.sshd.common.file.virtualfs.VirtualFileSystemFactory;
+import org.apache.sshd.common.keyprovider.KeyPairProvider;
+import org.apache.sshd.scp.server.ScpCommandFactory;
+import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.command.AbstractCommandSupport;
+import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
+import org.apache.sshd.sftp.server.SftpSubsystemFactory;
+
+import static org.apache.commons.text.StringEscapeUtils.unescapeXSI;
+
+/**
+ * An in-process ssh server to benchmark against, like the one of {@code ScpComponentTest}: it supports scp, sftp and {@code cat > <path>}, on a temporary directory. The client key pair is generated, and its private key written to a file which can be given as {@code privateKeyFile}.
+ */
+@Slf4j
+class BenchmarkSshServer implements Closeable {
+
+    static final String USER = "bench";
+
+    private final SshServer sshd;
+
+    @Getter
+    private final int port;
+    @Getter
+    private final Path root;
+    @Getter
+    private final Path privateKeyFile;
+
+    BenchmarkSshServer(int port) throws IOException, GeneralSecurityException {
+        this.port = port;
+        this.root = Files.createTempDirectory("scp-benchmark");
+        final KeyPair keyPair = KeyUtils.generateKeyPair(KeyPairProvider.SSH_RSA, 2048);
+        this.privateKeyFile = Files.createTempFile("scp-benchmark", ".key");
+        try (OutputStream out = Files.newOutputStream(privateKeyFile)) {
+            OpenSSHKeyPairResourceWriter.INSTANCE.writePrivateKey(keyPair, USER, (OpenSSHKeyEncryptionContext) null, out);
+        }
+        Files.setPosixFilePermissions(privateKeyFile, PosixFilePermissions.fromString("r--------"));
+
+        sshd = SshServer.setUpDefaultServer();
+        sshd.setHost("localhost");
+        sshd.setPort(port);
+        sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
+        sshd.setCommandFactory(new ScpCommandFactory.Builder()
+            .withDelegate((channel, command) -> new RemoteCommand(command, root))
+            .build());
+        sshd.setSubsystemFactories(List.of(new SftpSubsystemFactory()));
+        sshd.setPublickeyAuthenticator((username, key, session) ->
+            USER.equals(username) && KeyUtils.compareKeys(keyPair.getPublic(), key));
+        sshd.setFileSystemFactory(new VirtualFileSystemFactory(root));
+        sshd.start();
+        log.info("Started ssh server on localhost:{} for {}", port, root);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sshd.stop(true);
+        FileUtils.deleteQuietly(root.toFile());
+        Files.setPosixFilePermissions(privateKeyFile, PosixFilePermissions.fromString("rw-------"));
+        Files.deleteIfExists(privateKeyFile);
+    }
+
+    /**
+     * Supports {@code cat > <path>}, as used by {@link ScpEndpoint#isStreaming() streaming}.
+     */
+    private static class RemoteCommand extends AbstractCommandSupport {
+        private static final Pattern CAT = Pattern.compile("cat > (.*)");
+
+        private final Path root;
+
+        RemoteCommand(String command, Path root) {
+            super(command, null);
+            this.root = root;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final Matcher cat = CAT.matcher(getCommand());
+                if (cat.matches()) {
+                    try (OutputStream out = Files.newOutputStream(root.resolve(unescapeXSI(cat.group(1)).replaceFirst("^/+", "")))) {
+                        getInputStream().transferTo(out);
+                    }
+                    onExit(0);
+                } else {
+                    onExit(127, "Unsupported command " + getCommand());
+                }
+            } catch (IOException ioe) {
+                onExit(1, ioe.getMessage());
+            }
+        }
+    }
+}
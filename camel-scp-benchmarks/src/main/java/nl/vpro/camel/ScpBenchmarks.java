@@ -0,0 +1,27 @@
+package nl.vpro.camel;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.*;
+
+/**
+ * Runs the benchmarks, writing the results as JSON to {@code jmh-result.json}, so they can be compared between versions. All the usual JMH options are accepted, e.g. {@code -p size=1KB,1MB -p strategy=NATIVE_SFTP} to run a subset, or {@code -rff} for another result file.
+ */
+public class ScpBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        final ChainedOptionsBuilder options = new OptionsBuilder()
+            .parent(commandLine);
+        if (commandLine.getIncludes().isEmpty()) {
+            options.include(ScpProducerBenchmark.class.getSimpleName());
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result("jmh-result.json");
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,203 @@
+package nl.vpro.camel;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.Exchange;
+import org.apache.camel.ProducerTemplate;
+import org.apache.camel.impl.DefaultCamelContext;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Measures the {@link ScpProducer} against an in-process {@link BenchmarkSshServer}, for every {@link Strategy transfer strategy}, body size and {@link BodyType body type}, and at several levels of concurrency (the {@code send*} methods).
+ * <p>
+ * The primary score is messages per second; the {@link Counters#megabytes() megabytes} per second are reported as a secondary result.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ScpProducerBenchmark {
+
+    /**
+     * The ways the component can transfer, as endpoint options.
+     */
+    public enum Strategy {
+        EXECUTABLE(""),
+        STREAMING("&streaming=true"),
+        CONTROL_MASTER("&controlMaster=true"),
+        NATIVE_SFTP("&transport=native"),
+        NATIVE_SCP("&transport=native&protocol=scp"),
+        RESUMABLE("&transport=native&resumable=true"),
+        PARALLEL("&transport=native&parallelUploads=4&partSize=" + 8 * 1024 * 1024),
+        COMPRESSION("&transport=native&compression=true"),
+        CHECKSUM("&transport=native&checksumAlgorithm=SHA-256"),
+        ASYNC("&transport=native&async=true"),
+        BATCH_WINDOW("&transport=native&batchWindow=20ms"),
+        SKIP_UNCHANGED("&transport=native&ifUnchanged=skip");
+
+        final String options;
+
+        Strategy(String options) {
+            this.options = options;
+        }
+    }
+
+    public enum BodyType {
+        BYTES,
+        INPUT_STREAM,
+        FILE
+    }
+
+    @State(Scope.Benchmark)
+    public static class Transfer {
+
+        @Param
+        Strategy strategy;
+
+        @Param({"1KB", "1MB", "100MB", "1GB"})
+        String size;
+
+        @Param
+        BodyType bodyType;
+
+        BenchmarkSshServer server;
+        CamelContext context;
+        ProducerTemplate template;
+        String uri;
+        byte[] bytes;
+        File file;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            server = new BenchmarkSshServer(Integer.getInteger("benchmark.port", 2222));
+            bytes = new byte[Math.toIntExact(parseSize(size))];
+            ThreadLocalRandom.current().nextBytes(bytes);
+            if (bodyType == BodyType.FILE) {
+                file = Files.createTempFile("scp-benchmark", ".bin").toFile();
+                Files.write(file.toPath(), bytes);
+            }
+            context = new DefaultCamelContext();
+            context.start();
+            template = context.createProducerTemplate();
+            uri = "scp://localhost?remotePath=/&port=" + server.getPort()
+                + "&remoteUser=" + BenchmarkSshServer.USER
+                + "&privateKeyFile=" + server.getPrivateKeyFile()
+                + "&strictHostKeyChecking=no&useUserKnownHostsFile=false"
+                + strategy.options;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            template.close();
+            context.stop();
+            server.close();
+            if (file != null) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+
+        Object body() {
+            return switch (bodyType) {
+                case BYTES -> bytes;
+                case INPUT_STREAM -> new ByteArrayInputStream(bytes);
+                case FILE -> file;
+            };
+        }
+
+        static long parseSize(String size) {
+            final String upper = size.toUpperCase();
+            if (upper.endsWith("GB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) * 1024 * 1024 * 1024;
+            }
+            if (upper.endsWith("MB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) * 1024 * 1024;
+            }
+            if (upper.endsWith("KB")) {
+                return Long.parseLong(upper.substring(0, upper.length() - 2)) * 1024;
+            }
+            return Long.parseLong(upper);
+        }
+    }
+
+    /**
+     * Per thread, so concurrent senders write to different remote files.
+     */
+    @State(Scope.Thread)
+    public static class Sender {
+        private static int threads = 0;
+
+        String fileName;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            synchronized (Sender.class) {
+                fileName = "benchmark-" + (threads++);
+            }
+        }
+    }
+
+    /**
+     * The bytes sent, reported by JMH as a rate next to the messages per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+
+        public double megabytes() {
+            return bytes / (1024d * 1024d);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object send(Transfer transfer, Sender sender, Counters counters) {
+        return doSend(transfer, sender, counters);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object send4(Transfer transfer, Sender sender, Counters counters) {
+        return doSend(transfer, sender, counters);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public Object send16(Transfer transfer, Sender sender, Counters counters) {
+        return doSend(transfer, sender, counters);
+    }
+
+    /**
+     * Ten files per message, as a {@link TransferEntry#batch(org.apache.camel.Message) batch}.
+     */
+    @Benchmark
+    @Threads(1)
+    public Object batch(Transfer transfer, Sender sender, Counters counters) {
+        final Map<String, Object> batch = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            batch.put(sender.fileName + "." + i, transfer.body());
+        }
+        final Object result = transfer.template.requestBodyAndHeader(transfer.uri, batch, ScpConstants.BATCH, true);
+        counters.bytes += 10L * transfer.bytes.length;
+        return result;
+    }
+
+    private static Object doSend(Transfer transfer, Sender sender, Counters counters) {
+        final Object result = transfer.template.requestBodyAndHeader(transfer.uri, transfer.body(), Exchange.FILE_NAME, sender.fileName);
+        counters.bytes += transfer.bytes.length;
+        return result;
+    }
+}
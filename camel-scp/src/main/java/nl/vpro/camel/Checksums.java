@@ -0,0 +1,100 @@
+package nl.vpro.camel;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.Map;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Utilities to calculate the {@link ScpEndpoint#getChecksumAlgorithm() checksum} of transferred files while they are being read for the transfer.
+ */
+final class Checksums {
+
+    /**
+     * The commands to calculate a checksum on the remote host, by algorithm.
+     */
+    private static final Map<String, String> COMMANDS = Map.of(
+        "MD5", "md5sum",
+        "SHA-1", "sha1sum",
+        "SHA-224", "sha224sum",
+        "SHA-256", "sha256sum",
+        "SHA-384", "sha384sum",
+        "SHA-512", "sha512sum"
+    );
+
+    private Checksums() {
+    }
+
+    /**
+     * Wraps the stream, so that the digest is updated with everything read from it.
+     */
+    static InputStream digesting(InputStream inputStream, @Nullable MessageDigest digest) {
+        return digest == null ? inputStream : new DigestInputStream(inputStream, digest);
+    }
+
+    /**
+     * Skips bytes of the stream. If there is a digest, they are read, since it should include them.
+     */
+    static void skip(InputStream inputStream, long count, @Nullable MessageDigest digest) throws IOException {
+        if (digest == null) {
+            inputStream.skipNBytes(count);
+            return;
+        }
+        final byte[] buffer = new byte[8192];
+        long remaining = count;
+        while (remaining > 0) {
+            final int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException();
+            }
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Updates the digest with the contents of a local file. Used if the file is not read for a transfer at all.
+     */
+    static void update(MessageDigest digest, File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+    }
+
+    static @Nullable String hex(@Nullable MessageDigest digest) {
+        return digest == null ? null : HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * @return The command (like {@code sha256sum}) which calculates the checksum with the given algorithm on the remote host
+     * @throws IllegalArgumentException if there is no such command
+     */
+    static String command(String algorithm) {
+        final String command = COMMANDS.get(algorithm.toUpperCase());
+        if (command == null) {
+            throw new IllegalArgumentException("Can't verify checksums with algorithm " + algorithm + " on the remote host. Supported are " + COMMANDS.keySet());
+        }
+        return command;
+    }
+
+    /**
+     * Compares the checksum with the output of the remote {@link #command(String) command}.
+     * @throws IOException if they are not equal
+     */
+    static void verify(String remoteFile, @Nullable String checksum, String output) throws IOException {
+        final String remote = output.trim().split("\\s+", 2)[0];
+        if (!remote.equalsIgnoreCase(checksum)) {
+            throw new IOException("Checksum of " + remoteFile + " is " + remote + " on the remote host, but " + checksum + " was sent");
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package nl.vpro.camel;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import nl.vpro.logging.LoggerOutputStream;
+import nl.vpro.util.CommandExecutor;
+import nl.vpro.util.CommandExecutorImpl;
+
+/**
+ * A persistent, multiplexed ssh connection to one {@code user@host:port}, with one set of ssh options (an ssh 'ControlMaster'). Other {@code scp} and {@code ssh} invocations can use it via {@link #getControlPath()}, so they don't need to do a handshake of their own.
+ * <p>
+ * The master is checked at most every {@link ScpEndpoint#getControlMasterCheckInterval() check interval}, and restarted if it turned out to be gone. If there is no master, invocations just fall back to connecting themselves.
+ * <p>
+ * Instances are shared between endpoints, see {@link ScpComponent#acquireControlMaster(ScpEndpoint)}.
+ */
+@Slf4j
+public class ControlMaster {
+
+    private static final OutputStream STDOUT = LoggerOutputStream.debug(log, true);
+    private static final OutputStream STDERR = LoggerOutputStream.warn(log, true);
+
+    @Getter
+    private final String key;
+    @Getter
+    private final Path controlPath;
+
+    private final CommandExecutor ssh;
+    private final List<String> sshArguments;
+    private final Duration checkInterval;
+    private final Duration connectTimeout;
+
+    private final AtomicLong reconnects = new AtomicLong();
+
+    private CompletableFuture<Integer> process;
+    private CompletableFuture<Boolean> startup;
+    private volatile Instant lastCheck = Instant.EPOCH;
+    int references = 0;
+
+    ControlMaster(String key, Path controlDirectory, ScpEndpoint endpoint) {
+        this.key = key;
+        // control paths are unix sockets, which are limited in length, so just use a hash
+        this.controlPath = controlDirectory.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).toString());
+        this.ssh = CommandExecutorImpl.builder()
+            .executablesPaths(endpoint.getSshExecutables().split("\\s*,\\s*"))
+            .slf4j(log)
+            .build();
+        this.sshArguments = new ArrayList<>();
+        sshArguments.add("-p");
+        sshArguments.add("" + endpoint.getPort());
+        sshArguments.addAll(endpoint.sshOptions());
+        sshArguments.add("-o");
+        sshArguments.add("ControlPath " + controlPath);
+        sshArguments.add(endpoint.getRemoteUser() + "@" + endpoint.getRemoteHostName());
+        this.checkInterval = ScpEndpoint.parseDuration(endpoint.getControlMasterCheckInterval(), Duration.ofSeconds(30));
+        this.connectTimeout = ScpEndpoint.parseDuration(endpoint.getConnectTimeout(), Duration.ofSeconds(10));
+    }
+
+    /**
+     * The number of times the master connection was found to be gone, and had to be restarted.
+     */
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public synchronized boolean isRunning() {
+        return process != null && !process.isDone();
+    }
+
+    /**
+     * Makes sure the master is running, (re)starting it if needed. Failures are only logged, since clients can connect without master too.
+     * <p>
+     * Waiting for the master to come up happens outside the lock. Callers arriving meanwhile wait for the same startup.
+     * @return whether the master can be used
+     */
+    public boolean ensureRunning() {
+        final CompletableFuture<Boolean> pending;
+        final CompletableFuture<Integer> started;
+        synchronized (this) {
+            if (startup != null && !startup.isDone()) {
+                pending = startup;
+                started = null;
+            } else {
+                final Instant now = Instant.now();
+                if (process != null && !process.isDone()) {
+                    if (now.isBefore(lastCheck.plus(checkInterval)) || check()) {
+                        return true;
+                    }
+                    log.warn("Control master for {} is not responding. Restarting", key);
+                    stop();
+                    reconnects.incrementAndGet();
+                } else if (process != null) {
+                    if (now.isBefore(lastCheck.plus(checkInterval))) {
+                        // recently failed, don't try again too soon
+                        return false;
+                    }
+                    log.warn("Control master for {} exited with {}. Restarting", key, process.getNow(null));
+                    reconnects.incrementAndGet();
+                }
+                final List<String> args = new ArrayList<>(List.of("-M", "-N", "-o", "ControlPersist no"));
+                args.addAll(sshArguments);
+                process = ssh.submit(STDOUT, STDERR, args.toArray(String[]::new));
+                started = process;
+                pending = startup = new CompletableFuture<>();
+            }
+        }
+        if (started != null) {
+            boolean running = false;
+            try {
+                running = awaitStartup(started);
+            } finally {
+                pending.complete(running);
+            }
+        }
+        try {
+            return pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private boolean awaitStartup(CompletableFuture<Integer> started) {
+        final Instant deadline = Instant.now().plus(connectTimeout);
+        while (!check()) {
+            if (started.isDone() || Instant.now().isAfter(deadline)) {
+                log.warn("Could not start control master for {}. Connecting without it", key);
+                stop();
+                return false;
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stop();
+                return false;
+            }
+        }
+        log.info("Started control master for {} at {}", key, controlPath);
+        return true;
+    }
+
+    private boolean check() {
+        lastCheck = Instant.now();
+        if (!Files.exists(controlPath)) {
+            return false;
+        }
+        return control("check") == 0;
+    }
+
+    /**
+     * Shuts down the master connection, and waits for it to exit.
+     */
+    public synchronized void stop() {
+        if (process == null || process.isDone()) {
+            return;
+        }
+        if (Files.exists(controlPath)) {
+            control("exit");
+        }
+        try {
+            process.get(connectTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            log.info("Stopped control master for {}", key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            log.warn("Control master for {} did not exit cleanly: {}", key, e.getMessage());
+            process.cancel(true);
+        } finally {
+            try {
+                Files.deleteIfExists(controlPath);
+            } catch (IOException e) {
+                log.debug(e.getMessage());
+            }
+        }
+    }
+
+    private int control(String command) {
+        final List<String> args = new ArrayList<>(List.of("-O", command));
+        args.addAll(sshArguments);
+        return ssh.execute(STDOUT, STDOUT, args.toArray(String[]::new));
+    }
+
+    @Override
+    public String toString() {
+        return "ControlMaster " + key + " (" + controlPath + ")";
+    }
+}
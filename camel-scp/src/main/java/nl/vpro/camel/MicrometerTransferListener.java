@@ -0,0 +1,85 @@
+package nl.vpro.camel;
+
+import io.micrometer.core.instrument.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.camel.CamelContext;
+import org.apache.camel.component.micrometer.MicrometerConstants;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Publishes {@link TransferMetrics} to the micrometer {@link MeterRegistry} of the camel context, with the remote {@code user@host:port} as tag.
+ * <p>
+ * Micrometer is an optional dependency, so this class must only be used if it is available.
+ */
+class MicrometerTransferListener implements TransferMetrics.Listener {
+
+    private static final String PREFIX = "camel.scp.";
+
+    private final MeterRegistry registry;
+    private final String host;
+    private final Counter bytes;
+    private final Timer setup;
+    private final Timer succeeded;
+
+    private MicrometerTransferListener(MeterRegistry registry, String host) {
+        this.registry = registry;
+        this.host = host;
+        this.bytes = Counter.builder(PREFIX + "bytes")
+            .description("Bytes sent")
+            .baseUnit("bytes")
+            .tag("host", host)
+            .register(registry);
+        this.setup = Timer.builder(PREFIX + "setup")
+            .description("Time spent on getting sessions and channels")
+            .tag("host", host)
+            .register(registry);
+        this.succeeded = transfers("success");
+    }
+
+    /**
+     * @return A listener for the registry in the context (preferably the one named {@value MicrometerConstants#METRICS_REGISTRY_NAME}), or {@code null} if there is none
+     */
+    static @Nullable MicrometerTransferListener of(CamelContext context, String host) {
+        MeterRegistry registry = context.getRegistry().lookupByNameAndType(MicrometerConstants.METRICS_REGISTRY_NAME, MeterRegistry.class);
+        if (registry == null) {
+            registry = context.getRegistry().findSingleByType(MeterRegistry.class);
+        }
+        return registry == null ? null : new MicrometerTransferListener(registry, host);
+    }
+
+    private Timer transfers(String outcome) {
+        return Timer.builder(PREFIX + "transfers")
+            .description("Duration of transfers")
+            .tag("host", host)
+            .tag("outcome", outcome)
+            .register(registry);
+    }
+
+    @Override
+    public void sent(long count) {
+        bytes.increment(count);
+    }
+
+    @Override
+    public void setup(long nanos) {
+        setup.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void succeeded(long nanos) {
+        succeeded.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void failed(long nanos, int exitCode) {
+        transfers("failure").record(nanos, TimeUnit.NANOSECONDS);
+        Counter.builder(PREFIX + "failures")
+            .description("Failed transfers")
+            .tag("host", host)
+            .tag("exitCode", String.valueOf(exitCode))
+            .register(registry)
+            .increment();
+    }
+}
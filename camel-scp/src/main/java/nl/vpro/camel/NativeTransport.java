@@ -0,0 +1,387 @@
+package nl.vpro.camel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.function.UnaryOperator;
+
+import org.apache.camel.Exchange;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.scp.client.ScpClient;
+import org.apache.sshd.scp.client.ScpClientCreator;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+import org.apache.sshd.sftp.client.extensions.openssh.OpenSSHPosixRenameExtension;
+import org.apache.sshd.sftp.client.impl.SftpOutputStreamAsync;
+import org.apache.sshd.sftp.common.SftpConstants;
+import org.apache.sshd.sftp.common.SftpException;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import static org.apache.commons.text.StringEscapeUtils.escapeXSI;
+
+/**
+ * Transfers files using Apache MINA SSHD, so in the JVM itself, without starting {@code scp} processes. The ssh sessions are taken from the {@link SshSessionPool} of the endpoint, so they are reused for subsequent transfers.
+ * <p>
+ * Used if {@link ScpEndpoint#getTransport()} is {@link ScpEndpoint.Transport#NATIVE}.
+ * <p>
+ * Waiting for sessions and opening sftp channels is recorded as setup time in the {@link TransferMetrics} of the host.
+ * <p>
+ * Sftp uploads can be {@link ScpEndpoint#isResumable() resumable}: a retry of a failed upload then only sends the bytes which did not arrive yet. Large local files can be uploaded over {@link ScpEndpoint#getParallelUploads() several channels} at once.
+ */
+@Slf4j
+public class NativeTransport {
+
+    private static final Set<PosixFilePermission> PERMISSIONS = PosixFilePermissions.fromString("rw-r--r--");
+
+    /**
+     * Suffix of the remote file while a {@link ScpEndpoint#isResumable() resumable} upload is in progress
+     */
+    public static final String PARTIAL_SUFFIX = ".part";
+
+    private static final int PART_BUFFER_SIZE = 64 * 1024;
+
+    private final ScpEndpoint endpoint;
+
+    private ExecutorService partExecutor;
+
+    NativeTransport(ScpEndpoint endpoint) {
+        this.endpoint = endpoint;
+        if (endpoint.isResumable() && endpoint.getParallelUploads() > 1) {
+            log.info("Uploads to {} are resumable, so they are sequential. parallelUploads={} is not used", endpoint.hostKey(), endpoint.getParallelUploads());
+        } else if (endpoint.getChecksumAlgorithm() != null && endpoint.getParallelUploads() > 1) {
+            log.info("Uploads to {} are checksummed, so they are sequential. parallelUploads={} is not used", endpoint.hostKey(), endpoint.getParallelUploads());
+        }
+    }
+
+    /**
+     * Uploads one entry.
+     */
+    public TransferResult upload(@NonNull TransferEntry entry, @NonNull String remoteFile) throws Exception {
+        checkLength(entry);
+        final MessageDigest digest = endpoint.newMessageDigest();
+        final File localFile = entry.localFile();
+        if (endpoint.getProtocol() == ScpEndpoint.Protocol.SFTP && endpoint.getParallelUploads() > 1 && !endpoint.isResumable() && digest == null && localFile != null && localFile.length() > endpoint.getPartSize()) {
+            parallelUpload(localFile, remoteFile);
+        } else {
+            try (SshSessionPool.Lease lease = lease()) {
+                switch (endpoint.getProtocol()) {
+                    case SCP -> upload(scp(lease.getSession()), entry, remoteFile, digest);
+                    case SFTP -> {
+                        try (SftpClient sftp = sftp(lease.getSession())) {
+                            upload(sftp, entry, remoteFile, digest);
+                        }
+                    }
+                }
+            }
+        }
+        final String checksum = Checksums.hex(digest);
+        if (endpoint.isVerifyChecksum()) {
+            try (SshSessionPool.Lease lease = lease()) {
+                verify(lease.getSession(), remoteFile, checksum);
+            }
+        }
+        return TransferResult.success(entry, remoteFile, checksum);
+    }
+
+    /**
+     * Uploads all entries over one session (and for sftp one channel).
+     * @param produced Determines the remote path for a file name
+     */
+    public List<TransferResult> upload(@NonNull List<TransferEntry> entries, UnaryOperator<String> produced) throws Exception {
+        // fails for illegal file names, before anything is sent
+        final List<String> remoteFiles = entries.stream().map(entry -> produced.apply(entry.fileName())).toList();
+        final List<TransferResult> results = new ArrayList<>();
+        try (SshSessionPool.Lease lease = lease()) {
+            final ScpClient scp = endpoint.getProtocol() == ScpEndpoint.Protocol.SCP ? scp(lease.getSession()) : null;
+            try (SftpClient sftp = endpoint.getProtocol() == ScpEndpoint.Protocol.SFTP ? sftp(lease.getSession()) : null) {
+                for (int i = 0; i < entries.size(); i++) {
+                    final TransferEntry entry = entries.get(i);
+                    final String remoteFile = remoteFiles.get(i);
+                    try {
+                        checkLength(entry);
+                        final MessageDigest digest = endpoint.newMessageDigest();
+                        if (sftp != null) {
+                            mkdirs(sftp, entry.fileName(), remoteFile);
+                            upload(sftp, entry, remoteFile, digest);
+                        } else {
+                            upload(scp, entry, remoteFile, digest);
+                        }
+                        final String checksum = Checksums.hex(digest);
+                        if (endpoint.isVerifyChecksum()) {
+                            verify(lease.getSession(), remoteFile, checksum);
+                        }
+                        results.add(TransferResult.success(entry, remoteFile, checksum));
+                    } catch (Exception e) {
+                        log.warn("Failed to upload {}: {}", remoteFile, e.getMessage());
+                        results.add(TransferResult.failure(entry, remoteFile, e));
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    private void upload(ScpClient scp, TransferEntry entry, String remoteFile, @Nullable MessageDigest digest) throws Exception {
+        try (InputStream inputStream = open(entry, digest)) {
+            scp.upload(inputStream, remoteFile, entry.length(), PERMISSIONS, null);
+        }
+    }
+
+    private void upload(SftpClient sftp, TransferEntry entry, String remoteFile, @Nullable MessageDigest digest) throws Exception {
+        if (endpoint.isResumable()) {
+            resumableUpload(sftp, entry, remoteFile, digest);
+            return;
+        }
+        try (InputStream inputStream = open(entry, digest);
+             OutputStream outputStream = sftp.write(remoteFile)) {
+            inputStream.transferTo(outputStream);
+        }
+    }
+
+    /**
+     * The stream of the body, updating the digest (if any), and {@link TransferScheduler#throttle(InputStream, String) throttled}.
+     */
+    private InputStream open(TransferEntry entry, @Nullable MessageDigest digest) throws Exception {
+        return endpoint.transferScheduler().throttle(Checksums.digesting(entry.inputStream(endpoint.getCamelContext()), digest), endpoint.hostKey());
+    }
+
+    /**
+     * Uploads to {@code <remoteFile>.part}, starting at the current size of that file if it already exists (e.g. left by a failed earlier attempt), and renames it to the actual remote file when complete.
+     */
+    private void resumableUpload(SftpClient sftp, TransferEntry entry, String remoteFile, @Nullable MessageDigest digest) throws Exception {
+        final String partial = remoteFile + PARTIAL_SUFFIX;
+        long offset = size(sftp, partial);
+        if (entry.length() != null && offset > entry.length()) {
+            log.info("Partial file {} is larger ({}) than the body ({}). Starting from scratch", partial, offset, entry.length());
+            sftp.remove(partial);
+            offset = 0;
+        }
+        if (offset > 0) {
+            log.info("Resuming upload of {} at {}", remoteFile, offset);
+        }
+        try (InputStream inputStream = open(entry, digest);
+             OutputStream outputStream = write(sftp, partial, offset)) {
+            Checksums.skip(inputStream, offset, digest);
+            inputStream.transferTo(outputStream);
+        }
+        rename(sftp, partial, remoteFile);
+    }
+
+    /**
+     * Uploads the file in ranges of {@link ScpEndpoint#getPartSize()}, {@link ScpEndpoint#getParallelUploads()} at a time, each over its own channel (and possibly session) from the pool. They are written to {@code <remoteFile>.part}, which is renamed when all ranges arrived, and its size is verified.
+     * <p>
+     * This is not used for {@link ScpEndpoint#isResumable() resumable} uploads: the size of a {@code .part} file written out of order doesn't tell which ranges arrived, so it is truncated here first. Nor if a {@link ScpEndpoint#getChecksumAlgorithm() checksum} is requested: the checksum of the whole file can't be combined from checksums of the ranges, and can't be calculated from ranges read out of order, so it would need a read of the file of its own.
+     */
+    private void parallelUpload(File localFile, String remoteFile) throws Exception {
+        final String partial = remoteFile + PARTIAL_SUFFIX;
+        final long length = localFile.length();
+        final long partSize = Math.max(1, endpoint.getPartSize());
+        try (SshSessionPool.Lease lease = lease();
+             SftpClient sftp = sftp(lease.getSession())) {
+            // create or truncate
+            sftp.write(partial).close();
+        }
+        final List<Future<?>> parts = new ArrayList<>();
+        for (long offset = 0; offset < length; offset += partSize) {
+            final long start = offset;
+            final long end = Math.min(length, offset + partSize);
+            parts.add(partExecutor().submit(() -> {
+                uploadPart(localFile, partial, start, end);
+                return null;
+            }));
+        }
+        log.debug("Uploading {} ({} bytes) in {} parts", remoteFile, length, parts.size());
+        try {
+            for (Future<?> part : parts) {
+                part.get();
+            }
+        } catch (ExecutionException e) {
+            parts.forEach(p -> p.cancel(true));
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+        try (SshSessionPool.Lease lease = lease();
+             SftpClient sftp = sftp(lease.getSession())) {
+            final long size = size(sftp, partial);
+            if (size != length) {
+                throw new IOException("Size of " + partial + " is " + size + " after parallel upload, but should be " + length);
+            }
+            rename(sftp, partial, remoteFile);
+        }
+    }
+
+    private void uploadPart(File localFile, String remoteFile, long start, long end) throws Exception {
+        // not recorded as setup time, since it overlaps with the other parts
+        try (SshSessionPool.Lease lease = endpoint.sessionPool().acquire();
+             SftpClient sftp = SftpClientFactory.instance().createSftpClient(lease.getSession());
+             FileChannel channel = FileChannel.open(localFile.toPath(), StandardOpenOption.READ);
+             OutputStream outputStream = write(sftp, remoteFile, start)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(PART_BUFFER_SIZE);
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                final int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException(localFile + " was truncated during upload");
+                }
+                endpoint.transferScheduler().consume(endpoint.hostKey(), read);
+                outputStream.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
+    private synchronized ExecutorService partExecutor() {
+        if (partExecutor == null) {
+            partExecutor = endpoint.getCamelContext().getExecutorServiceManager()
+                .newFixedThreadPool(this, "ScpParallelUpload", endpoint.getParallelUploads());
+        }
+        return partExecutor;
+    }
+
+    /**
+     * Stops the threads used for parallel uploads, if any.
+     */
+    synchronized void close() {
+        if (partExecutor != null) {
+            endpoint.getCamelContext().getExecutorServiceManager().shutdownNow(partExecutor);
+            partExecutor = null;
+        }
+    }
+
+    /**
+     * @return The size of the remote file, or {@code -1} if it doesn't exist
+     */
+    public long remoteSize(@NonNull String remoteFile) throws Exception {
+        try (SshSessionPool.Lease lease = lease();
+             SftpClient sftp = sftp(lease.getSession())) {
+            return exists(sftp, remoteFile) ? size(sftp, remoteFile) : -1;
+        }
+    }
+
+    /**
+     * Opens the remote file for writing at the given offset, without truncating it.
+     */
+    static OutputStream write(SftpClient sftp, String remoteFile, long offset) throws IOException {
+        final OutputStream outputStream = sftp.write(remoteFile, SftpClient.OpenMode.Write, SftpClient.OpenMode.Create);
+        if (offset > 0) {
+            if (!(outputStream instanceof SftpOutputStreamAsync async)) {
+                outputStream.close();
+                throw new IllegalStateException("Can't write at an offset to " + outputStream.getClass());
+            }
+            async.setOffset(offset);
+        }
+        return outputStream;
+    }
+
+    /**
+     * @return The size of the remote file, or {@code 0} if it doesn't exist
+     */
+    static long size(SftpClient sftp, String remoteFile) throws IOException {
+        try {
+            return sftp.stat(remoteFile).getSize();
+        } catch (SftpException e) {
+            if (e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE) {
+                return 0;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Renames, replacing the target if it exists. Atomically if the server supports {@code posix-rename@openssh.com}, which plain sftp (version 3) rename doesn't.
+     */
+    private void rename(SftpClient sftp, String from, String to) throws IOException {
+        final OpenSSHPosixRenameExtension posixRename = sftp.getExtension(OpenSSHPosixRenameExtension.class);
+        if (posixRename != null && posixRename.isSupported()) {
+            posixRename.posixRename(from, to);
+            return;
+        }
+        if (exists(sftp, to)) {
+            sftp.remove(to);
+        }
+        sftp.rename(from, to);
+    }
+
+    private static boolean exists(SftpClient sftp, String remoteFile) throws IOException {
+        try {
+            sftp.stat(remoteFile);
+            return true;
+        } catch (SftpException e) {
+            if (e.getStatus() == SftpConstants.SSH_FX_NO_SUCH_FILE) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates the directories of file names with a path in them.
+     */
+    private void mkdirs(SftpClient sftp, String fileName, String remoteFile) throws IOException {
+        final int depth = fileName.split("/").length - 1;
+        String dir = remoteFile;
+        final List<String> dirs = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            dir = dir.substring(0, dir.lastIndexOf('/'));
+            dirs.add(0, dir);
+        }
+        for (String d : dirs) {
+            try {
+                sftp.stat(d);
+            } catch (SftpException e) {
+                sftp.mkdir(d);
+            }
+        }
+    }
+
+    /**
+     * Compares the checksum with the one calculated by the remote host.
+     */
+    private void verify(ClientSession session, String remoteFile, @Nullable String checksum) throws IOException {
+        final String output = session.executeRemoteCommand(Checksums.command(endpoint.getChecksumAlgorithm()) + " " + escapeXSI(remoteFile));
+        Checksums.verify(remoteFile, checksum, output);
+    }
+
+    private void checkLength(TransferEntry entry) {
+        if (endpoint.getProtocol() == ScpEndpoint.Protocol.SCP && entry.length() == null && entry.localFile() == null) {
+            throw new IllegalArgumentException("The scp protocol needs the length of the body beforehand. Set the " + Exchange.FILE_LENGTH + " header, or use protocol=sftp");
+        }
+    }
+
+    /**
+     * A session from the pool. The time it takes is {@link TransferMetrics#setup(long) setup time}.
+     */
+    private SshSessionPool.Lease lease() throws IOException, TimeoutException, InterruptedException {
+        final long start = System.nanoTime();
+        try {
+            return endpoint.sessionPool().acquire();
+        } finally {
+            endpoint.transferMetrics().setup(System.nanoTime() - start);
+        }
+    }
+
+    private ScpClient scp(ClientSession session) {
+        return ScpClientCreator.instance().createScpClient(session);
+    }
+
+    private SftpClient sftp(ClientSession session) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            return SftpClientFactory.instance().createSftpClient(session);
+        } finally {
+            endpoint.transferMetrics().setup(System.nanoTime() - start);
+        }
+    }
+}
@@ -1,18 +1,335 @@
 package nl.vpro.camel;
 
-import java.util.Map;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 import org.apache.camel.Endpoint;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
+import org.apache.camel.spi.Metadata;
 import org.apache.camel.support.DefaultComponent;
+import org.apache.commons.io.FileUtils;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Represents the component that manages {@link ScpEndpoint}.
+ * <p>
+ * Resources which can be shared between endpoints, like {@link ControlMaster control masters}, {@link SshSessionPool session pools} and {@link #credentialFile(byte[], CredentialType) credential files}, are kept here. As is the {@link TransferScheduler}, which divides the transfers and the bandwidth between the endpoints, and the {@link TransferMetrics} per remote host.
  */
+@ManagedResource(description = "Scp component")
+@Slf4j
 public class ScpComponent extends DefaultComponent {
 
+    @Metadata(description = "The maximum number of transfers running at the same time, for all endpoints together. Waiting transfers are started by priority (the CamelScpPriority header), and per priority fairly divided between endpoints. 0 is unlimited.", defaultValue = "0")
+    @Getter
+    @Setter
+    private int maxConcurrentTransfers = 0;
+
+    @Metadata(description = "The maximum number of bytes per second sent by all endpoints together. 0 is unlimited.", defaultValue = "0")
+    @Getter
+    @Setter
+    private long maxBytesPerSecond = 0;
+
+    @Metadata(description = "The maximum number of bytes per second sent to one user@host:port. 0 is unlimited.", defaultValue = "0")
+    @Getter
+    @Setter
+    private long maxBytesPerSecondPerHost = 0;
+
+    /**
+     * The number of sent files remembered for {@link ScpEndpoint#getIfUnchanged()}
+     */
+    static final int MAX_SENT_FILES = 10_000;
+
+    private final Map<String, ControlMaster> controlMasters = new HashMap<>();
+    private final Map<String, SshSessionPool> sessionPools = new HashMap<>();
+    private final Map<String, Path> credentialFiles = new HashMap<>();
+    private final Map<String, SentFile> sentFiles = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SentFile> eldest) {
+            return size() > MAX_SENT_FILES;
+        }
+    };
+    private final Map<String, TransferMetrics> transferMetrics = new ConcurrentHashMap<>();
+
+    private Path controlDirectory;
+    private Path credentialDirectory;
+
+    private ScheduledExecutorService evictor;
+
+    private TransferScheduler transferScheduler;
+
     @Override
     protected Endpoint createEndpoint(String uri, String remaining, Map<String, Object> parameters) throws Exception {
         Endpoint endpoint = new ScpEndpoint(getCamelContext(), uri, remaining, this);
         setProperties(endpoint, parameters);
         return endpoint;
     }
+
+    /**
+     * Returns the control master for the {@code user@host:port} and ssh options of the given endpoint, creating it if needed. Every call must be balanced by a {@link #releaseControlMaster(ControlMaster)}.
+     */
+    synchronized ControlMaster acquireControlMaster(ScpEndpoint endpoint) {
+        final ControlMaster master = controlMasters.computeIfAbsent(connectionKey(endpoint), k -> new ControlMaster(k, controlDirectory(), endpoint));
+        master.references++;
+        return master;
+    }
+
+    /**
+     * Stops the control master if it isn't used by any endpoint anymore.
+     */
+    synchronized void releaseControlMaster(ControlMaster master) {
+        if (--master.references <= 0) {
+            controlMasters.remove(master.getKey());
+            master.stop();
+        }
+    }
+
+    /**
+     * Returns the session pool for the {@code user@host:port} and ssh options of the given endpoint, creating it if needed. Every call must be balanced by a {@link #releaseSessionPool(SshSessionPool)}.
+     */
+    synchronized SshSessionPool acquireSessionPool(ScpEndpoint endpoint) {
+        final SshSessionPool pool = sessionPools.computeIfAbsent(connectionKey(endpoint), k -> new SshSessionPool(k, endpoint));
+        pool.references++;
+        startEvictor();
+        return pool;
+    }
+
+    /**
+     * The scheduler for the transfers of all endpoints. Its settings are taken from this component when it is first used.
+     */
+    synchronized TransferScheduler transferScheduler() {
+        if (transferScheduler == null) {
+            transferScheduler = new TransferScheduler(maxConcurrentTransfers, maxBytesPerSecond, maxBytesPerSecondPerHost, this::transferMetrics);
+            startEvictor();
+        }
+        return transferScheduler;
+    }
+
+    /**
+     * The metrics of the transfers to the given {@code user@host:port}. If micrometer is on the classpath, and there is a {@code MeterRegistry} in the camel registry, they are published there too.
+     */
+    TransferMetrics transferMetrics(String host) {
+        return transferMetrics.computeIfAbsent(host, h -> new TransferMetrics(h, micrometer(h)));
+    }
+
+    private TransferMetrics.@Nullable Listener micrometer(String host) {
+        try {
+            Class.forName("io.micrometer.core.instrument.MeterRegistry", false, getClass().getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        return MicrometerTransferListener.of(getCamelContext(), host);
+    }
+
+    @ManagedAttribute(description = "Number of transfers waiting for their turn")
+    public int getTransferQueueDepth() {
+        final TransferScheduler scheduler = transferScheduler;
+        return scheduler == null ? 0 : scheduler.getQueueDepth();
+    }
+
+    @ManagedAttribute(description = "Number of transfers currently running")
+    public int getActiveTransfers() {
+        final TransferScheduler scheduler = transferScheduler;
+        return scheduler == null ? 0 : scheduler.getActive();
+    }
+
+    @ManagedAttribute(description = "Total number of bytes sent")
+    public long getBytesSent() {
+        final TransferScheduler scheduler = transferScheduler;
+        return scheduler == null ? 0 : scheduler.getBytes();
+    }
+
+    @ManagedAttribute(description = "Bytes per second sent, over the last 10 seconds")
+    public double getThroughput() {
+        final TransferScheduler scheduler = transferScheduler;
+        return scheduler == null ? 0 : scheduler.getThroughput();
+    }
+
+    @ManagedAttribute(description = "Transfers, failures, bytes, setup and data time, and throughput per user@host:port")
+    public String getTransferMetrics() {
+        return transferMetrics.values().stream()
+            .sorted(Comparator.comparing(TransferMetrics::getHost))
+            .map(m -> m.getHost() + ": " + m.getTransfers() + " transfers, " + m.getFailures() + " failed " + m.getFailuresByExitCode() + ", " + m.getBytes() + " bytes, setup " + m.getSetupTime() + ", data " + m.getDataTime() + ", " + Math.round(m.getThroughput()) + " bytes/s")
+            .collect(Collectors.joining("\n"));
+    }
+
+    private void startEvictor() {
+        if (evictor == null) {
+            evictor = getCamelContext().getExecutorServiceManager().newSingleThreadScheduledExecutor(this, "ScpSessionEvictor");
+            evictor.scheduleWithFixedDelay(this::evictIdleSessions, 10, 10, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Closes the session pool if it isn't used by any endpoint anymore.
+     */
+    synchronized void releaseSessionPool(SshSessionPool pool) {
+        if (--pool.references <= 0) {
+            sessionPools.remove(pool.getKey());
+            pool.close();
+        }
+    }
+
+    private void evictIdleSessions() {
+        final List<SshSessionPool> pools;
+        final TransferScheduler scheduler;
+        synchronized (this) {
+            pools = new ArrayList<>(sessionPools.values());
+            scheduler = transferScheduler;
+        }
+        pools.forEach(SshSessionPool::evictIdle);
+        if (scheduler != null) {
+            scheduler.sample();
+        }
+    }
+
+    /**
+     * Returns a local file with the given contents (e.g. a private key from the environment), which can be given to {@code ssh}. Every distinct content is written only once, and the file is shared by all endpoints needing it. The files are deleted when the component stops.
+     */
+    synchronized Path credentialFile(byte[] content, CredentialType type) throws IOException {
+        final String name = HexFormat.of().formatHex(sha256(content)) + type.suffix;
+        final Path existing = credentialFiles.get(name);
+        if (existing != null && Files.exists(existing)) {
+            return existing;
+        }
+        final Path file = credentialDirectory().resolve(name);
+        Files.deleteIfExists(file);
+        Files.createFile(file, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        Files.write(file, content);
+        Files.setPosixFilePermissions(file, PosixFilePermissions.fromString(type.permissions));
+        credentialFiles.put(name, file);
+        log.info("Created {} ({} bytes)", file, content.length);
+        return file;
+    }
+
+    private static byte[] sha256(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Path credentialDirectory() throws IOException {
+        if (credentialDirectory == null) {
+            credentialDirectory = Files.createTempDirectory("scp-credentials", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        }
+        return credentialDirectory;
+    }
+
+    /**
+     * What was last sent successfully to the given remote file of the endpoint's host, if it was remembered.
+     */
+    synchronized Optional<SentFile> sentFile(ScpEndpoint endpoint, String remoteFile) {
+        return Optional.ofNullable(sentFiles.get(key(endpoint) + remoteFile));
+    }
+
+    /**
+     * Remembers what was sent to the remote file. Only the most recent {@value #MAX_SENT_FILES} are kept.
+     */
+    synchronized void sent(ScpEndpoint endpoint, String remoteFile, SentFile sent) {
+        sentFiles.put(key(endpoint) + remoteFile, sent);
+    }
+
+    static String key(ScpEndpoint endpoint) {
+        return endpoint.getRemoteUser() + "@" + endpoint.getRemoteHostName() + ":" + endpoint.getPort();
+    }
+
+    /**
+     * The {@link #key(ScpEndpoint) user@host:port} of the endpoint, followed by a hash of its {@link ScpEndpoint#sshOptions() ssh options}: the private key, the host key checking and the compression. A connection is only shared by endpoints for which this is the same, so an endpoint can never use a connection which was authenticated or verified differently.
+     */
+    static String connectionKey(ScpEndpoint endpoint) {
+        final byte[] options = String.join("\n", endpoint.sshOptions()).getBytes(StandardCharsets.UTF_8);
+        return key(endpoint) + "#" + HexFormat.of().formatHex(sha256(options), 0, 4);
+    }
+
+    private Path controlDirectory() {
+        if (controlDirectory == null) {
+            try {
+                controlDirectory = Files.createTempDirectory("scp-control");
+            } catch (IOException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return controlDirectory;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        synchronized (this) {
+            controlMasters.values().forEach(ControlMaster::stop);
+            controlMasters.clear();
+            sessionPools.values().forEach(SshSessionPool::close);
+            sessionPools.clear();
+            if (evictor != null) {
+                getCamelContext().getExecutorServiceManager().shutdown(evictor);
+                evictor = null;
+            }
+            if (controlDirectory != null) {
+                FileUtils.deleteQuietly(controlDirectory.toFile());
+                controlDirectory = null;
+            }
+            credentialFiles.clear();
+            sentFiles.clear();
+            transferMetrics.clear();
+            transferScheduler = null;
+            if (credentialDirectory != null) {
+                FileUtils.deleteQuietly(credentialDirectory.toFile());
+                credentialDirectory = null;
+            }
+        }
+        super.doStop();
+    }
+
+    /**
+     * @param digest       The hex encoded SHA-256 of the sent file, or {@code null} if it was not needed
+     * @param length       Its length in bytes
+     * @param lastModified If it was a local file, its modification time in milliseconds, otherwise {@code -1}
+     */
+    record SentFile(@Nullable String digest, long length, long lastModified) {
+
+        /**
+         * Whether the other has the same contents as this, as far as can be told without reading the files.
+         */
+        boolean sameContents(SentFile other) {
+            if (length != other.length) {
+                return false;
+            }
+            if (lastModified >= 0 && lastModified == other.lastModified) {
+                return true;
+            }
+            return digest != null && digest.equals(other.digest);
+        }
+    }
+
+    /**
+     * The kinds of files {@link #credentialFile(byte[], CredentialType)} can create.
+     */
+    enum CredentialType {
+        PRIVATE_KEY("", "r--------"),
+        // ssh may want to add hosts to it
+        KNOWN_HOSTS(".known_hosts", "rw-------");
+
+        final String suffix;
+        final String permissions;
+
+        CredentialType(String suffix, String permissions) {
+            this.suffix = suffix;
+            this.permissions = permissions;
+        }
+    }
 }
@@ -0,0 +1,27 @@
+package nl.vpro.camel;
+
+import org.apache.camel.spi.Metadata;
+
+/**
+ * Headers used by the scp component.
+ */
+public final class ScpConstants {
+
+    @Metadata(description = "Whether the body is a batch (a Map of file names to contents, or a collection of local files, messages or exchanges), of which all entries are sent at once", javaType = "Boolean", defaultValue = "false")
+    public static final String BATCH = "CamelScpBatch";
+
+    @Metadata(description = "The results of a batch transfer, one for every entry", javaType = "java.util.List<nl.vpro.camel.TransferResult>")
+    public static final String BATCH_RESULTS = "CamelScpBatchResults";
+
+    @Metadata(description = "The hex encoded checksum of the sent bytes, if a checksumAlgorithm is configured", javaType = "String")
+    public static final String CHECKSUM = "CamelScpChecksum";
+
+    @Metadata(description = "Whether the file was not sent, because it was unchanged (see ifUnchanged)", javaType = "Boolean")
+    public static final String SKIPPED = "CamelScpSkipped";
+
+    @Metadata(description = "The priority of the transfer, if it has to wait for its turn (see the maxConcurrentTransfers option of the component)", javaType = "nl.vpro.camel.TransferScheduler.Priority", defaultValue = "NORMAL")
+    public static final String PRIORITY = "CamelScpPriority";
+
+    private ScpConstants() {
+    }
+}
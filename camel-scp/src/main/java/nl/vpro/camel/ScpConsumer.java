@@ -0,0 +1,154 @@
+package nl.vpro.camel;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.apache.camel.Exchange;
+import org.apache.camel.Processor;
+import org.apache.camel.support.ScheduledPollConsumer;
+import org.apache.sshd.sftp.client.SftpClient;
+import org.apache.sshd.sftp.client.SftpClientFactory;
+
+/**
+ * Polls the {@link ScpEndpoint#getRemotePath() remote directory} over sftp, using sessions from the {@link SshSessionPool}, and creates an exchange for every new or changed file. The file is downloaded to a local temporary file first, so the session is given back to the pool before the route processes it, however long that takes. The body is an {@link InputStream} reading that temporary file, which is deleted afterwards.
+ * <p>
+ * Files are recognized as new or changed by their modification time and size, which are remembered (in memory) once an exchange for the file was processed successfully. So a failed file is offered again at the next poll. Files which disappeared from the remote directory are forgotten. Files still being uploaded by a {@link ScpEndpoint#isResumable() resumable} producer are skipped.
+ * <p>
+ * At most {@link ScpEndpoint#getMaxMessagesPerPoll()} files are offered per poll, the oldest first, and at most {@link ScpEndpoint#getConcurrentDownloads()} at the same time.
+ */
+@Slf4j
+public class ScpConsumer extends ScheduledPollConsumer {
+
+    private final ScpEndpoint endpoint;
+
+    private final Map<String, Watermark> seen = new ConcurrentHashMap<>();
+
+    private ExecutorService downloads;
+
+    public ScpConsumer(ScpEndpoint endpoint, Processor processor) {
+        super(endpoint, processor);
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        if (endpoint.getConcurrentDownloads() > 1) {
+            downloads = getEndpoint().getCamelContext().getExecutorServiceManager()
+                .newFixedThreadPool(this, "ScpConsumer", endpoint.getConcurrentDownloads());
+        }
+        super.doStart();
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        super.doStop();
+        if (downloads != null) {
+            getEndpoint().getCamelContext().getExecutorServiceManager().shutdownGraceful(downloads);
+            downloads = null;
+        }
+    }
+
+    @Override
+    protected int poll() throws Exception {
+        final List<SftpClient.DirEntry> candidates = list();
+        if (candidates.isEmpty()) {
+            return 0;
+        }
+        log.debug("Found {} new or changed files in {}", candidates.size(), endpoint.getRemotePath());
+        if (downloads == null) {
+            for (SftpClient.DirEntry candidate : candidates) {
+                if (!isRunAllowed()) {
+                    break;
+                }
+                process(candidate);
+            }
+        } else {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (SftpClient.DirEntry candidate : candidates) {
+                futures.add(downloads.submit(() -> {
+                    process(candidate);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        return candidates.size();
+    }
+
+    /**
+     * The regular files in the remote directory which were not successfully processed before in their current state, oldest first.
+     */
+    private List<SftpClient.DirEntry> list() throws Exception {
+        final List<SftpClient.DirEntry> result = new ArrayList<>();
+        final Set<String> present = new HashSet<>();
+        try (SshSessionPool.Lease lease = endpoint.sessionPool().acquire();
+             SftpClient sftp = SftpClientFactory.instance().createSftpClient(lease.getSession())) {
+            for (SftpClient.DirEntry entry : sftp.readDir(endpoint.getRemotePath())) {
+                final SftpClient.Attributes attributes = entry.getAttributes();
+                if (!attributes.isRegularFile() || entry.getFilename().endsWith(NativeTransport.PARTIAL_SUFFIX)) {
+                    continue;
+                }
+                present.add(entry.getFilename());
+                if (!Watermark.of(attributes).equals(seen.get(entry.getFilename()))) {
+                    result.add(entry);
+                }
+            }
+        }
+        // so that this doesn't grow forever, and a file which comes back is offered again
+        seen.keySet().retainAll(present);
+        result.sort(Comparator.comparing(e -> e.getAttributes().getModifyTime()));
+        final int max = endpoint.getMaxMessagesPerPoll();
+        return max > 0 && result.size() > max ? result.subList(0, max) : result;
+    }
+
+    private void process(SftpClient.DirEntry entry) throws Exception {
+        final String remoteFile = endpoint.getRemotePath() + "/" + entry.getFilename();
+        final Exchange exchange = createExchange(false);
+        Path download = null;
+        try {
+            download = Files.createTempFile(ScpConsumer.class.getSimpleName(), ".tmp");
+            try (SshSessionPool.Lease lease = endpoint.sessionPool().acquire();
+                 SftpClient sftp = SftpClientFactory.instance().createSftpClient(lease.getSession());
+                 InputStream inputStream = sftp.read(remoteFile)) {
+                Files.copy(inputStream, download, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (InputStream inputStream = Files.newInputStream(download)) {
+                exchange.getIn().setBody(inputStream);
+                exchange.getIn().setHeader(Exchange.FILE_NAME, entry.getFilename());
+                exchange.getIn().setHeader(Exchange.FILE_PATH, remoteFile);
+                exchange.getIn().setHeader(Exchange.FILE_LENGTH, entry.getAttributes().getSize());
+                exchange.getIn().setHeader(Exchange.FILE_LAST_MODIFIED, entry.getAttributes().getModifyTime().toMillis());
+                getProcessor().process(exchange);
+            }
+        } catch (Exception e) {
+            exchange.setException(e);
+        } finally {
+            if (download != null) {
+                Files.deleteIfExists(download);
+            }
+        }
+        try {
+            if (exchange.getException() == null) {
+                seen.put(entry.getFilename(), Watermark.of(entry.getAttributes()));
+            } else {
+                getExceptionHandler().handleException("Error processing " + remoteFile, exchange, exchange.getException());
+            }
+        } finally {
+            releaseExchange(exchange, false);
+        }
+    }
+
+    private record Watermark(long modified, long size) {
+        static Watermark of(SftpClient.Attributes attributes) {
+            return new Watermark(attributes.getModifyTime().toMillis(), attributes.getSize());
+        }
+    }
+}
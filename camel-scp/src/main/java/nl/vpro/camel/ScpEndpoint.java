@@ -1,22 +1,33 @@
 package nl.vpro.camel;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
 import java.util.function.BooleanSupplier;
 
 import org.apache.camel.*;
+import org.apache.camel.api.management.ManagedAttribute;
+import org.apache.camel.api.management.ManagedResource;
 import org.apache.camel.spi.*;
-import org.apache.camel.support.DefaultEndpoint;
+import org.apache.camel.support.ScheduledPollEndpoint;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import nl.vpro.util.TimeUtils;
 
 /**
  * Represents a Scp endpoint.
@@ -31,14 +42,14 @@ import org.checkerframework.checker.nullness.qual.MonotonicNonNull;
     scheme = "scp",
     title = "Scp",
     syntax="scp:username@host:port/privateKeyFile",
-    producerOnly = true,
     category = Category.FILE
 )
 @UriParams
+@ManagedResource(description = "Scp endpoint")
 @Getter
 @Setter
 @Slf4j
-public class ScpEndpoint extends DefaultEndpoint {
+public class ScpEndpoint extends ScheduledPollEndpoint {
     @UriParam(
         label = "Remote host",
         description = "Remote host where the file(s) should be transferred to"
@@ -99,14 +110,179 @@ public class ScpEndpoint extends DefaultEndpoint {
     @Metadata(required = false, defaultValue = "/local/bin/scp,/usr/bin/scp")
     private String scpExecutables =  "/local/bin/scp,/usr/bin/scp";
 
-    @Getter
+    @UriParam
+    @Metadata(required = false, defaultValue = "/local/bin/ssh,/usr/bin/ssh")
+    private String sshExecutables =  "/local/bin/ssh,/usr/bin/ssh";
+
+    @UriParam(
+        description = "How to transfer the files. Either by calling the 'scp' executable, or natively, in the JVM itself (using Apache MINA SSHD)"
+    )
+    @Metadata(required = false, defaultValue = "EXECUTABLE")
+    private Transport transport = Transport.EXECUTABLE;
+
+    @UriParam(
+        description = "The protocol to use if the transport is native. For scp the length of the body must be known beforehand"
+    )
+    @Metadata(required = false, defaultValue = "SFTP")
+    private Protocol protocol = Protocol.SFTP;
+
+    @UriParam(
+        description = "The maximum number of concurrent ssh sessions to the remote user@host:port. With transport=executable (and no control master) this limits the number of concurrent scp processes."
+    )
+    @Metadata(required = false, defaultValue = "10")
+    private int maxSessions = 10;
+
+    @UriParam(
+        description = "The maximum number of concurrent transfers (channels) over one ssh session"
+    )
+    @Metadata(required = false, defaultValue = "10")
+    private int maxChannelsPerSession = 10;
+
+    @UriParam(
+        description = "Pooled ssh sessions which are not used for this long are closed"
+    )
+    @Metadata(required = false, defaultValue = "60s")
+    private String idleTimeout = "60s";
+
+    @UriParam(
+        description = "How long to wait for a free session or channel when the maximum is reached"
+    )
+    @Metadata(required = false, defaultValue = "30s")
+    private String acquireTimeout = "30s";
+
+    @UriParam(
+        description = "If set, exchanges arriving within this window are collected, and sent together as one batch (like bodies which are a batch themselves)"
+    )
+    @Metadata(required = false)
+    private String batchWindow;
+
+    @UriParam(
+        description = "The maximum number of exchanges collected within the batch window. If reached, the batch is sent right away"
+    )
+    @Metadata(required = false, defaultValue = "100")
+    private int batchSize = 100;
+
+    @UriParam(
+        description = "Whether uploads should be resumable. The file is uploaded to '<name>.part' first, and renamed when complete. If that file already exists (because an earlier attempt failed), the upload continues where it ended. Requires transport=native and protocol=sftp."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean resumable = false;
+
+    @UriParam(
+        description = "The number of concurrent sftp channels a large local file is uploaded with, each writing its own range of the remote file. Only for transport=native and protocol=sftp, and not if resumable (a partially uploaded file can only be resumed if it was written in order) or with a checksumAlgorithm (which needs the bytes in order); 1 means sequentially."
+    )
+    @Metadata(required = false, defaultValue = "1")
+    private int parallelUploads = 1;
+
+    @UriParam(
+        description = "The size in bytes of the ranges in which a file is split for parallel uploads. Files not larger than this are uploaded sequentially."
+    )
+    @Metadata(required = false, defaultValue = "67108864")
+    private long partSize = 64 * 1024 * 1024;
+
+    @UriParam(
+        label = "consumer",
+        description = "The maximum number of files to consume per poll. 0 is unlimited."
+    )
+    @Metadata(required = false, defaultValue = "0")
+    private int maxMessagesPerPoll = 0;
+
+    @UriParam(
+        label = "consumer",
+        description = "The maximum number of files downloaded and processed at the same time"
+    )
+    @Metadata(required = false, defaultValue = "1")
+    private int concurrentDownloads = 1;
+
+    @UriParam(
+        description = "What to do with files which are unchanged since they were last sent by this component (same length, and same modification time for local files or else same SHA-256, and for the native transport the same remote size): send them anyway, or skip them. Local files are only read for this if their modification time differs. Bodies which are not files, strings or byte arrays are spooled to a temporary file for this."
+    )
+    @Metadata(required = false, defaultValue = "SEND")
+    private IfUnchanged ifUnchanged = IfUnchanged.SEND;
+
+    @UriParam(
+        description = "Whether to compress the ssh connection. Worth it for compressible data over slow links."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean compression = false;
+
+    @UriParam(
+        description = "If set, the checksum of the sent bytes is calculated with this algorithm (a java MessageDigest algorithm, like SHA-256), while sending them. It is available in the CamelScpChecksum header."
+    )
+    @Metadata(required = false)
+    private String checksumAlgorithm;
+
+    @UriParam(
+        description = "Whether to verify the checksum with the one calculated on the remote host (using e.g. 'sha256sum'). This requires the remote user to have a shell."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean verifyChecksum = false;
+
+    @UriParam(
+        description = "Whether bodies that are not local files should be piped directly to the remote host (using 'ssh <host> cat > <path>'), rather than being copied to a temporary file which is then scp'ed. This requires the remote user to have a shell."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean streaming = false;
+
+    @UriParam(
+        description = "Whether to keep open a persistent multiplexed ssh connection (a 'ControlMaster') to the remote host, which is then reused by all scp and ssh invocations. This saves a full handshake per transfer."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean controlMaster = false;
+
+    @UriParam(
+        description = "How often the control master connection is checked for being alive (if it is used at all)"
+    )
+    @Metadata(required = false, defaultValue = "30s")
+    private String controlMasterCheckInterval = "30s";
+
+    @UriParam(
+        description = "Whether the producer should be asynchronous. The routing thread is then released right away, and the transfer happens on a dedicated executor, which calls back when it is finished."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean async = false;
+
+    @UriParam(
+        label = "advanced",
+        description = "The maximum number of concurrent transfers on the executor of an asynchronous producer"
+    )
+    @Metadata(required = false, defaultValue = "10")
+    private int transferPoolSize = 10;
+
+    @UriParam(
+        label = "advanced",
+        description = "Whether an asynchronous producer should do its transfers on virtual threads (one per transfer), rather than on a pool. Only available on java 21 and higher; otherwise the pool is used."
+    )
+    @Metadata(required = false, defaultValue = "false")
+    private boolean transferVirtualThreads = false;
+
+    @UriParam(
+        label = "advanced",
+        description = "The executor an asynchronous producer should use, rather than creating one of its own"
+    )
+    @Metadata(required = false)
+    private ExecutorService transferExecutorService;
+
+    @Getter(AccessLevel.NONE)
     @MonotonicNonNull
     private File actualPrivateKeyFile;
 
-    @Getter
+    @Getter(AccessLevel.NONE)
     @MonotonicNonNull
     private String userHosts;
 
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private ControlMaster activeControlMaster;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private SshSessionPool sessionPool;
+
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    private NativeTransport nativeTransport;
+
 
     public ScpEndpoint(CamelContext context, String uri, String remaining, ScpComponent component) {
         super(uri, component);
@@ -117,16 +293,242 @@ public class ScpEndpoint extends DefaultEndpoint {
 
     @Override
     public Producer createProducer() throws Exception {
+        if (resumable && (transport != Transport.NATIVE || protocol != Protocol.SFTP)) {
+            throw new IllegalArgumentException("Resumable uploads are only supported with transport=native and protocol=sftp");
+        }
+        if (verifyChecksum) {
+            if (checksumAlgorithm == null) {
+                throw new IllegalArgumentException("verifyChecksum requires a checksumAlgorithm");
+            }
+            Checksums.command(checksumAlgorithm);
+        }
+        newMessageDigest();
+        initCredentials();
+        return new ScpProducer(this);
+    }
+
+    private synchronized void initCredentials() throws IOException {
         if (actualPrivateKeyFile == null) {
             this.actualPrivateKeyFile = createActualPrivateKeyFile();
             this.userHosts = createUserHosts();
         }
-        return new ScpProducer(this);
+    }
+
+    /**
+     * The private key as a local file, once a producer or consumer was created. If it is one of the {@link ScpComponent#credentialFile(byte[], ScpComponent.CredentialType) credential files} of the component, which deletes them when it stops, it is created again when needed.
+     */
+    public synchronized File getActualPrivateKeyFile() {
+        recreateDeletedCredentials();
+        return actualPrivateKeyFile;
+    }
+
+    /**
+     * The known hosts file to use, once a producer or consumer was created. Created again when needed, like {@link #getActualPrivateKeyFile()}.
+     */
+    public synchronized String getUserHosts() {
+        recreateDeletedCredentials();
+        return userHosts;
+    }
+
+    private synchronized void recreateDeletedCredentials() {
+        if (actualPrivateKeyFile == null) {
+            return;
+        }
+        final boolean userHostsDeleted = knownHostsFile != null && knownHostsFile.startsWith("classpath:") && !new File(userHosts).exists();
+        if (!actualPrivateKeyFile.exists() || userHostsDeleted) {
+            try {
+                this.actualPrivateKeyFile = createActualPrivateKeyFile();
+                this.userHosts = createUserHosts();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * The {@link ControlMaster} to use, if {@link #isControlMaster()} and it can be used at all.
+     */
+    Optional<ControlMaster> controlMaster() {
+        if (! controlMaster) {
+            return Optional.empty();
+        }
+        final ControlMaster master;
+        synchronized (this) {
+            if (activeControlMaster == null) {
+                activeControlMaster = ((ScpComponent) getComponent()).acquireControlMaster(this);
+            }
+            master = activeControlMaster;
+        }
+        return master.ensureRunning() ? Optional.of(master) : Optional.empty();
+    }
+
+    @ManagedAttribute(description = "Whether the control master connection is currently running")
+    public boolean isControlMasterRunning() {
+        final ControlMaster master = activeControlMaster;
+        return master != null && master.isRunning();
+    }
+
+    @ManagedAttribute(description = "Number of times the control master connection had to be restarted")
+    public long getControlMasterReconnects() {
+        final ControlMaster master = activeControlMaster;
+        return master == null ? 0 : master.getReconnects();
+    }
+
+    /**
+     * The {@link SshSessionPool} for the remote {@code user@host:port} of this endpoint.
+     */
+    synchronized SshSessionPool sessionPool() {
+        if (sessionPool == null) {
+            sessionPool = ((ScpComponent) getComponent()).acquireSessionPool(this);
+        }
+        return sessionPool;
+    }
+
+    @ManagedAttribute(description = "Number of open ssh sessions to the remote host")
+    public int getPooledSessions() {
+        final SshSessionPool pool = sessionPool;
+        return pool == null ? 0 : pool.getSessionCount();
+    }
+
+    @ManagedAttribute(description = "Number of transfers currently running to the remote host")
+    public int getActiveTransfers() {
+        final SshSessionPool pool = sessionPool;
+        return pool == null ? 0 : pool.getActiveCount();
+    }
+
+    /**
+     * The {@link TransferScheduler} of the component
+     */
+    TransferScheduler transferScheduler() {
+        return ((ScpComponent) getComponent()).transferScheduler();
+    }
+
+    /**
+     * The {@link TransferMetrics} of the remote {@code user@host:port} of this endpoint
+     */
+    TransferMetrics transferMetrics() {
+        return ((ScpComponent) getComponent()).transferMetrics(hostKey());
+    }
+
+    @ManagedAttribute(description = "Number of transfers to the remote host (a batch counts as one), including failed ones")
+    public long getHostTransfers() {
+        return transferMetrics().getTransfers();
+    }
+
+    @ManagedAttribute(description = "Number of failed transfers to the remote host")
+    public long getHostTransferFailures() {
+        return transferMetrics().getFailures();
+    }
+
+    @ManagedAttribute(description = "Number of failed transfers to the remote host per exit code of scp or ssh (-1 if there was none)")
+    public String getHostTransferFailuresByExitCode() {
+        return transferMetrics().getFailuresByExitCode().toString();
+    }
+
+    @ManagedAttribute(description = "Number of bytes sent to the remote host")
+    public long getHostBytesSent() {
+        return transferMetrics().getBytes();
+    }
+
+    @ManagedAttribute(description = "Total time in milliseconds spent on getting sessions and channels for the remote host")
+    public long getHostSetupTime() {
+        return transferMetrics().getSetupTime().toMillis();
+    }
+
+    @ManagedAttribute(description = "Total time in milliseconds spent on sending data to the remote host")
+    public long getHostDataTime() {
+        return transferMetrics().getDataTime().toMillis();
+    }
+
+    @ManagedAttribute(description = "Average bytes per second while sending data to the remote host")
+    public double getHostThroughput() {
+        return transferMetrics().getThroughput();
+    }
+
+    /**
+     * The {@code user@host:port} of this endpoint
+     */
+    String hostKey() {
+        return ScpComponent.key(this);
+    }
+
+    /**
+     * The {@link NativeTransport} to use if {@link #getTransport()} is {@link Transport#NATIVE}
+     */
+    synchronized NativeTransport nativeTransport() {
+        if (nativeTransport == null) {
+            nativeTransport = new NativeTransport(this);
+        }
+        return nativeTransport;
     }
 
     @Override
-    public Consumer createConsumer(Processor processor) {
-        throw new UnsupportedOperationException("This component does not support consuming from this endpoint");
+    protected void doStop() throws Exception {
+        synchronized (this) {
+            if (activeControlMaster != null) {
+                ((ScpComponent) getComponent()).releaseControlMaster(activeControlMaster);
+                activeControlMaster = null;
+            }
+            if (nativeTransport != null) {
+                nativeTransport.close();
+                nativeTransport = null;
+            }
+            if (sessionPool != null) {
+                ((ScpComponent) getComponent()).releaseSessionPool(sessionPool);
+                sessionPool = null;
+            }
+        }
+        super.doStop();
+    }
+
+    /**
+     * The options shared by all {@code scp} and {@code ssh} invocations.
+     */
+    List<String> sshOptions() {
+        final List<String> options = new ArrayList<>(List.of(
+            "-i",
+            getActualPrivateKeyFile().getAbsolutePath(),
+            "-o",
+            "ConnectTimeout " + parseDuration(getConnectTimeout(), Duration.ofSeconds(10)).getSeconds(),
+            "-o",
+            "StrictHostKeyChecking " + getStrictHostKeyChecking().name(),
+            "-o",
+            "UserKnownHostsFile " + getUserHosts()
+        ));
+        if (compression) {
+            options.add("-o");
+            options.add("Compression yes");
+        }
+        return options;
+    }
+
+    /**
+     * @return A new digest for the {@link #getChecksumAlgorithm() checksum algorithm}, or {@code null} if no checksum is requested
+     */
+    @Nullable MessageDigest newMessageDigest() {
+        if (checksumAlgorithm == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(checksumAlgorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unsupported checksum algorithm " + checksumAlgorithm, e);
+        }
+    }
+
+    static Duration parseDuration(String value, Duration defaultValue) {
+        return TimeUtils.parseDuration(value).orElse(defaultValue);
+    }
+
+    /**
+     * Creates a consumer polling the remote path, see {@link ScpConsumer}. This always uses sftp over the {@link SshSessionPool}, whatever the {@link #getTransport() transport}.
+     */
+    @Override
+    public Consumer createConsumer(Processor processor) throws Exception {
+        initCredentials();
+        final ScpConsumer consumer = new ScpConsumer(this, processor);
+        configureConsumer(consumer);
+        return consumer;
     }
 
     @Override
@@ -153,22 +555,44 @@ public class ScpEndpoint extends DefaultEndpoint {
         }
     }
 
+    public enum Transport {
+        /**
+         * Call the {@code scp} (or {@code ssh}) executable
+         */
+        EXECUTABLE,
+        /**
+         * Transfer in the JVM itself, using Apache MINA SSHD.
+         */
+        NATIVE
+    }
+
+    /**
+     * See {@link #getIfUnchanged()}
+     */
+    public enum IfUnchanged {
+        SEND,
+        SKIP
+    }
+
+    /**
+     * The protocol to use with {@link Transport#NATIVE}
+     */
+    public enum Protocol {
+        SCP,
+        SFTP
+    }
+
     private File createActualPrivateKeyFile() throws IOException {
         final File privateKeyFile;
 
         if (StringUtils.isNotBlank(getPrivateKeyFile())) {
             if (getPrivateKeyFile().startsWith("env:")) {
-                privateKeyFile = File.createTempFile(ScpProducer.class.getSimpleName(), "id");
                 String propName = getPrivateKeyFile().substring(("env:".length()));
                 String value = System.getProperty(propName, System.getenv(propName));
                 if (value == null) {
                     throw new IllegalArgumentException("No system property found " + propName);
                 }
-                try (FileOutputStream outputStream = new FileOutputStream(privateKeyFile)){
-                    IOUtils.write(value.getBytes(StandardCharsets.UTF_8), outputStream);
-                }
-                Files.setPosixFilePermissions(privateKeyFile.toPath(), PosixFilePermissions.fromString("r--------"));
-                log.info("Created  private key file {} ({} bytes)", privateKeyFile, privateKeyFile.length());
+                privateKeyFile = credentialFile(value.getBytes(StandardCharsets.UTF_8), ScpComponent.CredentialType.PRIVATE_KEY);
             } else {
                 privateKeyFile = new File(getPrivateKeyFile());
             }
@@ -180,12 +604,15 @@ public class ScpEndpoint extends DefaultEndpoint {
             if (privateKeyBytes == null){
                 throw new IllegalStateException("No private key file nor private key bytes configured");
             }
-            privateKeyFile = File.createTempFile(ScpProducer.class.getSimpleName(), "id");
-            privateKeyFile.deleteOnExit();
+            privateKeyFile = credentialFile(privateKeyBytes, ScpComponent.CredentialType.PRIVATE_KEY);
         }
         return privateKeyFile;
     }
 
+    private File credentialFile(byte[] content, ScpComponent.CredentialType type) throws IOException {
+        return ((ScpComponent) getComponent()).credentialFile(content, type).toFile();
+    }
+
     private String createUserHosts() throws IOException {
         String userHosts = getKnownHostsFile();
         if (userHosts == null) {
@@ -195,13 +622,11 @@ public class ScpEndpoint extends DefaultEndpoint {
                 userHosts = "/dev/null";
             }
         } else if (userHosts.startsWith("classpath:")) {
-            final File tmpFile = File.createTempFile(ScpProducer.class.getSimpleName() + ".userHosts", ".tmp");
-            tmpFile.deleteOnExit();
-            try (FileOutputStream output = new FileOutputStream(tmpFile)) {
-                IOUtils.copy(Objects.requireNonNull(ScpProducer.class.getResourceAsStream("/" + userHosts.substring("classpath:".length()))), output);
+            final byte[] content;
+            try (InputStream input = Objects.requireNonNull(ScpProducer.class.getResourceAsStream("/" + userHosts.substring("classpath:".length())))) {
+                content = IOUtils.toByteArray(input);
             }
-            userHosts = tmpFile.getAbsolutePath();
-            log.info("Temporary created {}", userHosts);
+            userHosts = credentialFile(content, ScpComponent.CredentialType.KNOWN_HOSTS).getAbsolutePath();
         } else {
             log.info("Using {}", userHosts);
         }
@@ -3,13 +3,23 @@ package nl.vpro.camel;
 import lombok.extern.slf4j.Slf4j;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
 import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
 
+import org.apache.camel.AsyncCallback;
 import org.apache.camel.Exchange;
-import org.apache.camel.support.DefaultProducer;
+import org.apache.camel.component.file.GenericFile;
+import org.apache.camel.support.DefaultAsyncProducer;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 import nl.vpro.logging.LoggerOutputStream;
 import nl.vpro.util.*;
@@ -18,15 +28,28 @@ import static org.apache.commons.text.StringEscapeUtils.escapeXSI;
 
 /**
  * The Scp producer.
+ * <p>
+ * With {@link ScpEndpoint.Transport#NATIVE} the transfer is done by {@link NativeTransport}. Otherwise, if the body of the exchange is a local file (a {@link File}, a {@link Path} or a {@link GenericFile} pointing to a local file) it is handed to {@code scp} directly. Otherwise the body is read as an {@link InputStream}, which is either copied to a temporary file first, or, if {@link ScpEndpoint#isStreaming()}, piped directly to the remote host via {@code ssh <host> 'cat > <path>'}.
+ * <p>
+ * If the body is a batch (see {@link TransferEntry#batch(org.apache.camel.Message)}), all entries are transferred at once, using one session (or one {@code scp} invocation). The same happens for exchanges arriving within the {@link ScpEndpoint#getBatchWindow() batch window}.
+ * <p>
+ * Every transfer waits for its turn in the {@link TransferScheduler} of the component, with the priority of the {@link ScpConstants#PRIORITY} header.
+ * <p>
+ * If {@link ScpEndpoint#isAsync()}, the transfers are done on a dedicated executor (see {@link ScpEndpoint#getTransferPoolSize()} and {@link ScpEndpoint#isTransferVirtualThreads()}), so the routing thread doesn't have to wait for the network.
  */
 @Slf4j
-public class ScpProducer extends DefaultProducer {
+public class ScpProducer extends DefaultAsyncProducer {
 
     private static final OutputStream STDOUT = LoggerOutputStream.debug(log, true);
     private static final OutputStream STDERR = LoggerOutputStream.error(log, true);
 
     private final ScpEndpoint endpoint;
     private final CommandExecutor scp;
+    private final CommandExecutor ssh;
+
+    private BatchWindow batchWindow;
+    private ExecutorService transferExecutor;
+    private boolean shutdownTransferExecutor;
 
     public ScpProducer(ScpEndpoint endpoint) {
         super(endpoint);
@@ -35,57 +58,622 @@ public class ScpProducer extends DefaultProducer {
             .executablesPaths(endpoint.getScpExecutables().split("\\s*,\\s*"))
             .slf4j(log)
             .build();
+        ssh = CommandExecutorImpl.builder()
+            .executablesPaths(endpoint.getSshExecutables().split("\\s*,\\s*"))
+            .slf4j(log)
+            .build();
+    }
+
+    @Override
+    protected void doStart() throws Exception {
+        super.doStart();
+        final Duration window = ScpEndpoint.parseDuration(endpoint.getBatchWindow(), Duration.ZERO);
+        if (!window.isZero() && !window.isNegative()) {
+            batchWindow = new BatchWindow(window, endpoint.getBatchSize());
+        }
+        if (endpoint.isAsync()) {
+            transferExecutor = endpoint.getTransferExecutorService();
+            shutdownTransferExecutor = transferExecutor == null;
+            if (transferExecutor == null) {
+                transferExecutor = createTransferExecutor();
+            }
+        }
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        if (batchWindow != null) {
+            batchWindow.close();
+            batchWindow = null;
+        }
+        if (transferExecutor != null) {
+            if (shutdownTransferExecutor) {
+                getEndpoint().getCamelContext().getExecutorServiceManager().shutdownGraceful(transferExecutor);
+            }
+            transferExecutor = null;
+        }
+        super.doStop();
+    }
+
+    @Override
+    public boolean process(@NonNull Exchange exchange, @NonNull AsyncCallback callback) {
+        final ExecutorService executor = transferExecutor;
+        if (executor == null) {
+            transfer(exchange);
+            callback.done(true);
+            return true;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    transfer(exchange);
+                } finally {
+                    callback.done(false);
+                }
+            });
+            return false;
+        } catch (RejectedExecutionException e) {
+            exchange.setException(e);
+            callback.done(true);
+            return true;
+        }
+    }
+
+    private void transfer(@NonNull Exchange exchange) {
+        try {
+            doTransfer(exchange);
+        } catch (Exception e) {
+            exchange.setException(e);
+        }
+    }
+
+    private void doTransfer(@NonNull Exchange exchange) throws Exception {
+        final TransferScheduler.Priority priority = exchange.getIn().getHeader(ScpConstants.PRIORITY, TransferScheduler.Priority.NORMAL, TransferScheduler.Priority.class);
+        final List<TransferEntry> batch = TransferEntry.batch(exchange.getIn());
+        if (batch != null) {
+            final List<TransferResult> results = sendIfChanged(batch, entries -> scheduled(priority, () -> send(entries)));
+            exchange.getIn().setHeader(ScpConstants.BATCH_RESULTS, results);
+            exchange.getIn().setHeader(Exchange.FILE_NAME_PRODUCED, results.stream()
+                .filter(TransferResult::isSuccess)
+                .map(TransferResult::produced)
+                .toList()
+            );
+            throwIfFailed(results);
+            return;
+        }
+        final TransferEntry entry = TransferEntry.of(exchange.getIn());
+        final TransferResult result = sendIfChanged(List.of(entry), entries -> List.of(sendOrCollect(entries.get(0), priority))).get(0);
+        throwIfFailed(List.of(result));
+        exchange.getIn().setHeader(Exchange.FILE_NAME_PRODUCED, result.produced());
+        if (result.checksum() != null) {
+            exchange.getIn().setHeader(ScpConstants.CHECKSUM, result.checksum());
+        }
+        if (endpoint.getIfUnchanged() == ScpEndpoint.IfUnchanged.SKIP) {
+            exchange.getIn().setHeader(ScpConstants.SKIPPED, result.skipped());
+        }
+    }
+
+    /**
+     * Sends the entry right away, or, if there is a batch window, as part of the next batch.
+     */
+    private TransferResult sendOrCollect(@NonNull TransferEntry entry, TransferScheduler.@NonNull Priority priority) throws Exception {
+        if (batchWindow == null) {
+            return scheduled(priority, () -> List.of(send(entry))).get(0);
+        }
+        // an illegal file name fails this exchange only, not the whole batch it would be part of
+        produced(entry.fileName());
+        try {
+            return batchWindow.submit(entry).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
 
+    /**
+     * Does the transfer when the {@link TransferScheduler} allows it, and records its duration and outcome in the {@link TransferMetrics} of the host. A transfer failed if it threw, or if any of its results is a failure.
+     */
+    private List<TransferResult> scheduled(TransferScheduler.@NonNull Priority priority, @NonNull Callable<List<TransferResult>> transfer) throws Exception {
+        final Duration timeout = ScpEndpoint.parseDuration(endpoint.getAcquireTimeout(), Duration.ofSeconds(30));
+        try (TransferScheduler.Slot ignored = endpoint.transferScheduler().acquire(endpoint.getEndpointUri(), priority, timeout)) {
+            final TransferMetrics metrics = endpoint.transferMetrics();
+            final long start = System.nanoTime();
+            final List<TransferResult> results;
+            try {
+                results = transfer.call();
+            } catch (Exception e) {
+                metrics.failed(System.nanoTime() - start, exitCode(e));
+                throw e;
+            }
+            final Optional<Exception> failure = results.stream()
+                .map(TransferResult::exception)
+                .filter(Objects::nonNull)
+                .findFirst();
+            if (failure.isPresent()) {
+                metrics.failed(System.nanoTime() - start, exitCode(failure.get()));
+            } else {
+                metrics.succeeded(System.nanoTime() - start);
+            }
+            return results;
+        }
     }
 
+    private static int exitCode(Exception e) {
+        return e instanceof Ssh.SshException sshException ? sshException.getExitCode() : TransferMetrics.NO_EXIT_CODE;
+    }
 
-    public void process(@NonNull Exchange exchange) throws Exception {
-        final InputStream inputStream = exchange.getIn().getBody(InputStream.class);
-        final String fileName = exchange.getIn().getHeader(Exchange.FILE_NAME, String.class);
-        if (fileName == null || fileName.equals("")) {
-            throw new IllegalArgumentException("Filename can't be empty");
+    /**
+     * Waits for the session pool to allow another process. The time it takes is {@link TransferMetrics#setup(long) setup time}.
+     */
+    private SshSessionPool.Lease processLease() throws TimeoutException, InterruptedException {
+        final long start = System.nanoTime();
+        try {
+            return endpoint.sessionPool().acquireProcess();
+        } finally {
+            endpoint.transferMetrics().setup(System.nanoTime() - start);
         }
-        exchange.getIn().setHeader(Exchange.FILE_NAME_PRODUCED, send(inputStream, fileName));
     }
 
+    /**
+     * Sends the entries using the given sender. If {@link ScpEndpoint#getIfUnchanged()} is {@link ScpEndpoint.IfUnchanged#SKIP}, only those which are different from what was sent successfully before are given to the sender. The others get a {@link TransferResult#skipped() skipped} result.
+     * <p>
+     * Bodies which can be read only once are spooled to temporary files for this, which are deleted afterwards.
+     */
+    private List<TransferResult> sendIfChanged(@NonNull List<TransferEntry> entries, @NonNull Sender sender) throws Exception {
+        if (endpoint.getIfUnchanged() != ScpEndpoint.IfUnchanged.SKIP) {
+            return sender.send(entries);
+        }
+        final ScpComponent component = (ScpComponent) endpoint.getComponent();
+        final TransferResult[] results = new TransferResult[entries.size()];
+        final List<TransferEntry> changed = new ArrayList<>();
+        final List<Integer> indexes = new ArrayList<>();
+        final List<ScpComponent.SentFile> sentFiles = new ArrayList<>();
+        final List<File> spooled = new ArrayList<>();
+        try {
+            for (int i = 0; i < entries.size(); i++) {
+                final TransferEntry entry = entries.get(i).rereadable(getEndpoint().getCamelContext());
+                final boolean spool = entry != entries.get(i);
+                if (spool) {
+                    spooled.add(entry.localFile());
+                }
+                final String produced = produced(entry.fileName());
+                final ScpComponent.SentFile previous = component.sentFile(endpoint, produced).orElse(null);
+                final ScpComponent.SentFile sentFile = sentFile(entry, spool, previous);
+                if (previous != null && previous.sameContents(sentFile) && remoteUnchanged(produced, sentFile)) {
+                    log.debug("Skipping unchanged {}", produced);
+                    results[i] = TransferResult.skipped(entry, produced);
+                } else {
+                    changed.add(entry);
+                    indexes.add(i);
+                    sentFiles.add(sentFile);
+                }
+            }
+            if (!changed.isEmpty()) {
+                final List<TransferResult> sent = sender.send(changed);
+                for (int j = 0; j < sent.size(); j++) {
+                    final TransferResult result = sent.get(j);
+                    results[indexes.get(j)] = result;
+                    if (result.isSuccess()) {
+                        component.sent(endpoint, result.produced(), sentFiles.get(j));
+                    }
+                }
+            }
+        } finally {
+            for (File file : spooled) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        return Arrays.asList(results);
+    }
 
+    /**
+     * What would be sent for the entry. A local file is only read to calculate its digest if that is needed to compare it with what was sent before: not if it has another length, nor if its length and modification time are the same.
+     * @param spooled  Whether the entry is a temporary copy of the body, of which the modification time means nothing
+     * @param previous What was sent before to the same remote file, if known
+     */
+    private ScpComponent.SentFile sentFile(@NonNull TransferEntry entry, boolean spooled, ScpComponent.@Nullable SentFile previous) throws Exception {
+        final File localFile = entry.localFile();
+        final long lastModified = localFile == null || spooled ? -1 : localFile.lastModified();
+        if (lastModified >= 0) {
+            final ScpComponent.SentFile metadata = new ScpComponent.SentFile(null, localFile.length(), lastModified);
+            if (previous == null || previous.length() != metadata.length()) {
+                // changed anyway
+                return metadata;
+            }
+            if (previous.sameContents(metadata)) {
+                // keeps the digest, if it was calculated then
+                return previous;
+            }
+        }
+        final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        final long length;
+        if (localFile != null) {
+            Checksums.update(digest, localFile);
+            length = localFile.length();
+        } else {
+            try (InputStream inputStream = Checksums.digesting(entry.inputStream(getEndpoint().getCamelContext()), digest)) {
+                length = inputStream.transferTo(OutputStream.nullOutputStream());
+            }
+        }
+        return new ScpComponent.SentFile(Checksums.hex(digest), length, lastModified);
+    }
+
+    /**
+     * For the native transport, whether the size of the remote file is still what was sent, in case it was changed or removed meanwhile. The other transports can't tell cheaply, and assume so.
+     */
+    private boolean remoteUnchanged(@NonNull String produced, ScpComponent.@NonNull SentFile sentFile) throws Exception {
+        if (endpoint.getTransport() == ScpEndpoint.Transport.NATIVE) {
+            return endpoint.nativeTransport().remoteSize(produced) == sentFile.length();
+        }
+        return true;
+    }
+
+    /**
+     * Sends one entry. If a {@link ScpEndpoint#getChecksumAlgorithm() checksum} is requested, it is calculated while reading the body for the transfer, or, for a local file, while {@code scp} reads it, see {@link #send(File, String, MessageDigest)}.
+     */
+    private TransferResult send(@NonNull TransferEntry entry) throws Exception {
+        final String produced = produced(entry.fileName());
+        if (endpoint.getTransport() == ScpEndpoint.Transport.NATIVE) {
+            return endpoint.nativeTransport().upload(entry, produced);
+        }
+        final MessageDigest digest = endpoint.newMessageDigest();
+        final File localFile = entry.localFile();
+        if (localFile != null) {
+            send(localFile, produced, digest);
+        } else {
+            final InputStream inputStream = Checksums.digesting(entry.inputStream(getEndpoint().getCamelContext()), digest);
+            if (endpoint.isStreaming()) {
+                stream(inputStream, produced);
+            } else {
+                send(inputStream, produced);
+            }
+        }
+        final String checksum = Checksums.hex(digest);
+        if (endpoint.isVerifyChecksum()) {
+            verify(produced, checksum);
+        }
+        return TransferResult.success(entry, produced, checksum);
+    }
 
-    private String send(@NonNull final InputStream inputStream, @NonNull final String fileName) throws IOException {
+    /**
+     * Sends all entries in one go. With the executable transport, they are put in a temporary directory, which is then copied recursively with one {@code scp} invocation. Local files are only linked there. If a checksum is requested, it is calculated while copying the other entries there, and for local files while {@code scp} reads them, like {@link #send(File, String, MessageDigest)}.
+     */
+    private List<TransferResult> send(@NonNull List<TransferEntry> entries) throws Exception {
+        if (endpoint.getTransport() == ScpEndpoint.Transport.NATIVE) {
+            return endpoint.nativeTransport().upload(entries, this::produced);
+        }
+        final Path staging = Files.createTempDirectory(ScpProducer.class.getSimpleName());
+        try {
+            final Set<Path> sources = new LinkedHashSet<>();
+            final List<MessageDigest> digests = new ArrayList<>();
+            long bytes = 0;
+            for (TransferEntry entry : entries) {
+                final MessageDigest digest = endpoint.newMessageDigest();
+                final Path target = staging.resolve(entry.fileName()).normalize();
+                if (!target.startsWith(staging) || target.equals(staging)) {
+                    throw new IllegalArgumentException("Illegal file name " + entry.fileName());
+                }
+                Files.createDirectories(target.getParent());
+                final File localFile = entry.localFile();
+                if (localFile != null) {
+                    Files.createSymbolicLink(target, localFile.toPath().toAbsolutePath());
+                    bytes += localFile.length();
+                } else {
+                    try (InputStream inputStream = Checksums.digesting(entry.inputStream(getEndpoint().getCamelContext()), digest)) {
+                        bytes += Files.copy(inputStream, target);
+                    }
+                }
+                digests.add(digest);
+                sources.add(staging.resolve(staging.relativize(target).getName(0)));
+            }
+            final List<String> args = new ArrayList<>();
+            args.add("-r");
+            args.add("-P");
+            args.add("" + endpoint.getPort());
+            args.addAll(limit());
+            args.addAll(sshOptions());
+            sources.forEach(p -> args.add(p.toString()));
+            args.add(remote() + ":" + escapeXSI(endpoint.getRemotePath() + "/"));
+            final int exitCode;
+            try (SshSessionPool.Lease ignored = processLease()) {
+                exitCode = execute(args, () -> {
+                    for (int i = 0; i < entries.size(); i++) {
+                        final File localFile = entries.get(i).localFile();
+                        if (localFile != null && digests.get(i) != null) {
+                            Checksums.update(digests.get(i), localFile);
+                        }
+                    }
+                });
+            }
+            final Exception exception = exitCode == 0 ? null : failed(exitCode, entries.size() + " files");
+            if (exception == null) {
+                endpoint.transferScheduler().count(endpoint.hostKey(), bytes);
+            }
+            final List<String> checksums = digests.stream().map(Checksums::hex).toList();
+            final List<TransferResult> results = new ArrayList<>();
+            for (int i = 0; i < entries.size(); i++) {
+                final TransferEntry entry = entries.get(i);
+                final String produced = produced(entry.fileName());
+                if (exception != null) {
+                    results.add(TransferResult.failure(entry, produced, exception));
+                    continue;
+                }
+                try {
+                    if (endpoint.isVerifyChecksum()) {
+                        verify(produced, checksums.get(i));
+                    }
+                    results.add(TransferResult.success(entry, produced, checksums.get(i)));
+                } catch (IOException e) {
+                    results.add(TransferResult.failure(entry, produced, e));
+                }
+            }
+            return results;
+        } finally {
+            FileUtils.deleteDirectory(staging.toFile());
+        }
+    }
+
+    /**
+     * Copies the stream to a temporary file first, and then scp's that.
+     */
+    private void send(@NonNull final InputStream inputStream, @NonNull final String produced) throws IOException, TimeoutException, InterruptedException {
         final File sourceFile = File.createTempFile(ScpProducer.class.getName(), "tmp");
         try (OutputStream outputStream = new FileOutputStream(sourceFile)) {
             IOUtils.copy(inputStream, outputStream);
         }
         try {
-            final String remoteHostName = endpoint.getRemoteHostName();
-            final String remoteUser = endpoint.getRemoteUser();
-            final String remotePath = endpoint.getRemotePath();
-            final int port = endpoint.getPort();
-
-            final String produced = remotePath + "/"+ fileName;
-            int exitCode = scp.execute(
-                STDOUT,
-                STDERR,
-                "-P",
-                "" + port,
-                "-i",
-                endpoint.getActualPrivateKeyFile().getAbsolutePath(),
-                "-o",
-                "ConnectTimeout " + (TimeUtils.parseDuration(endpoint.getConnectTimeout()).orElse(Duration.ofSeconds(10)).getSeconds()),
-                "-o",
-                "StrictHostKeyChecking " + endpoint.getStrictHostKeyChecking().name(),
-                "-o",
-                "UserKnownHostsFile " + endpoint.getUserHosts(),
-                sourceFile.getAbsolutePath(), // source
-                remoteUser + "@" + remoteHostName + ":" + escapeXSI(produced) // destination,
-            );
-            if (exitCode != 0) {
-                throw new Ssh.SshException(exitCode, "Failed to send input stream to  " + remoteHostName + ":" + remotePath + " and port " + port);
+            send(sourceFile, produced);
+        } finally {
+            Files.delete(sourceFile.toPath());
+        }
+    }
+
+    private void send(@NonNull final File sourceFile, @NonNull final String produced) throws IOException, TimeoutException, InterruptedException {
+        send(sourceFile, produced, null);
+    }
+
+    /**
+     * Scp's the file. If there is a digest, the file is read to update it while {@code scp} reads it too, so mostly from the page cache.
+     */
+    private void send(@NonNull final File sourceFile, @NonNull final String produced, @Nullable MessageDigest digest) throws IOException, TimeoutException, InterruptedException {
+        final List<String> args = new ArrayList<>();
+        args.add("-P");
+        args.add("" + endpoint.getPort());
+        args.addAll(limit());
+        args.addAll(sshOptions());
+        args.add(sourceFile.getAbsolutePath()); // source
+        args.add(remote() + ":" + escapeXSI(produced)); // destination
+        final int exitCode;
+        try (SshSessionPool.Lease ignored = processLease()) {
+            exitCode = execute(args, () -> {
+                if (digest != null) {
+                    Checksums.update(digest, sourceFile);
+                }
+            });
+        }
+        if (exitCode != 0) {
+            throw failed(exitCode, sourceFile.getName());
+        }
+        endpoint.transferScheduler().count(endpoint.hostKey(), sourceFile.length());
+    }
+
+    /**
+     * Runs {@code scp}, and meanwhile the given task, e.g. to read the files it sends.
+     * @return The exit code of {@code scp}
+     */
+    private int execute(@NonNull List<String> args, @NonNull Meanwhile meanwhile) throws IOException, InterruptedException {
+        final CompletableFuture<Integer> process = scp.submit(STDOUT, STDERR, args.toArray(String[]::new));
+        IOException failure = null;
+        try {
+            meanwhile.run();
+        } catch (IOException e) {
+            failure = e;
+        }
+        final int exitCode;
+        try {
+            exitCode = process.get();
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return exitCode;
+    }
+
+    @FunctionalInterface
+    private interface Meanwhile {
+        void run() throws IOException;
+    }
+
+    /**
+     * The bandwidth limit option for {@code scp}, if the {@link TransferScheduler} has one. It's per process, so can't be shared between processes like the native transport does.
+     */
+    private List<String> limit() {
+        final long bytesPerSecond = endpoint.transferScheduler().maxBytesPerSecond();
+        if (bytesPerSecond <= 0) {
+            return List.of();
+        }
+        // in Kbit/s
+        return List.of("-l", "" + Math.max(1, bytesPerSecond * 8 / 1000));
+    }
+
+    /**
+     * Pipes the stream to {@code cat} on the remote host, so no local copy is needed.
+     */
+    private void stream(@NonNull final InputStream inputStream, @NonNull final String produced) throws TimeoutException, InterruptedException {
+        final List<String> args = new ArrayList<>();
+        args.add("-p");
+        args.add("" + endpoint.getPort());
+        args.addAll(sshOptions());
+        args.add(remote());
+        args.add("cat > " + escapeXSI(produced));
+        final int exitCode;
+        try (SshSessionPool.Lease ignored = processLease()) {
+            exitCode = ssh.execute(endpoint.transferScheduler().throttle(inputStream, endpoint.hostKey()), STDOUT, STDERR, args.toArray(String[]::new));
+        }
+        if (exitCode != 0) {
+            throw failed(exitCode, "input stream");
+        }
+    }
+
+    /**
+     * A new executor for the transfers: one virtual thread per transfer if {@link ScpEndpoint#isTransferVirtualThreads() requested} and supported by the jvm, otherwise a fixed pool.
+     */
+    private ExecutorService createTransferExecutor() {
+        if (endpoint.isTransferVirtualThreads()) {
+            try {
+                // java 21, but we still compile for 17
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                log.warn("Virtual threads are not supported by this jvm ({}). Using a pool of {} threads", System.getProperty("java.version"), endpoint.getTransferPoolSize());
             }
-            return produced;
         }
-        finally {
-            Files.delete(sourceFile.toPath());
+        return getEndpoint().getCamelContext().getExecutorServiceManager()
+            .newFixedThreadPool(this, "ScpTransfer", Math.max(1, endpoint.getTransferPoolSize()));
+    }
+
+    /**
+     * Compares the checksum with the one calculated on the remote host.
+     */
+    private void verify(@NonNull String produced, @Nullable String checksum) throws IOException, TimeoutException, InterruptedException {
+        final List<String> args = new ArrayList<>();
+        args.add("-p");
+        args.add("" + endpoint.getPort());
+        args.addAll(sshOptions());
+        args.add(remote());
+        args.add(Checksums.command(endpoint.getChecksumAlgorithm()) + " " + escapeXSI(produced));
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final int exitCode;
+        try (SshSessionPool.Lease ignored = processLease()) {
+            exitCode = ssh.execute(output, STDERR, args.toArray(String[]::new));
+        }
+        if (exitCode != 0) {
+            throw new Ssh.SshException(exitCode, "Failed to calculate checksum of " + produced + " on " + endpoint.getRemoteHostName());
+        }
+        Checksums.verify(produced, checksum, output.toString(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * The options for {@code scp} and {@code ssh}, including the ones to use the control master, if there is one.
+     */
+    private List<String> sshOptions() {
+        final List<String> options = new ArrayList<>(endpoint.sshOptions());
+        endpoint.controlMaster().ifPresent(master -> {
+            options.add("-o");
+            options.add("ControlMaster no");
+            options.add("-o");
+            options.add("ControlPath " + master.getControlPath());
+        });
+        return options;
+    }
+
+    private String remote() {
+        return endpoint.getRemoteUser() + "@" + endpoint.getRemoteHostName();
+    }
+
+    /**
+     * The remote path for the given file name.
+     * @throws IllegalArgumentException If the file name would end up outside the {@link ScpEndpoint#getRemotePath() remote path}, like {@code ../../etc/x}
+     */
+    private String produced(String fileName) {
+        // normalized relative to the remote path itself, since '/..' would normalize to '/'
+        final Path relative = Paths.get(fileName).normalize();
+        if (relative.isAbsolute() || relative.startsWith("..") || relative.toString().isEmpty()) {
+            throw new IllegalArgumentException("Illegal file name " + fileName);
+        }
+        return endpoint.getRemotePath() + "/" + fileName;
+    }
+
+    private Ssh.SshException failed(int exitCode, String what) {
+        return new Ssh.SshException(exitCode, "Failed to send " + what + " to  " + endpoint.getRemoteHostName() + ":" + endpoint.getRemotePath() + " and port " + endpoint.getPort());
+    }
+
+    private static void throwIfFailed(List<TransferResult> results) throws Exception {
+        Exception exception = null;
+        for (TransferResult result : results) {
+            if (!result.isSuccess()) {
+                if (exception == null) {
+                    exception = result.exception();
+                } else if (exception != result.exception()) {
+                    exception.addSuppressed(result.exception());
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
         }
     }
 
+    @FunctionalInterface
+    private interface Sender {
+        List<TransferResult> send(List<TransferEntry> entries) throws Exception;
+    }
+
+    /**
+     * Collects the entries of exchanges arriving within a certain time window, and sends them as one batch.
+     */
+    private class BatchWindow {
+        private final Duration window;
+        private final int size;
+        private final ScheduledExecutorService scheduler;
+        private final List<TransferEntry> entries = new ArrayList<>();
+        private final List<CompletableFuture<TransferResult>> futures = new ArrayList<>();
+        private ScheduledFuture<?> flush;
+
+        BatchWindow(Duration window, int size) {
+            this.window = window;
+            this.size = Math.max(1, size);
+            this.scheduler = getEndpoint().getCamelContext().getExecutorServiceManager()
+                .newSingleThreadScheduledExecutor(ScpProducer.this, "ScpBatchWindow");
+        }
+
+        CompletableFuture<TransferResult> submit(TransferEntry entry) {
+            final CompletableFuture<TransferResult> result = new CompletableFuture<>();
+            boolean full;
+            synchronized (this) {
+                entries.add(entry);
+                futures.add(result);
+                full = entries.size() >= size;
+                if (!full && flush == null) {
+                    flush = scheduler.schedule(this::flush, window.toMillis(), TimeUnit.MILLISECONDS);
+                }
+            }
+            if (full) {
+                flush();
+            }
+            return result;
+        }
+
+        void flush() {
+            final List<TransferEntry> batch;
+            final List<CompletableFuture<TransferResult>> results;
+            synchronized (this) {
+                if (flush != null) {
+                    flush.cancel(false);
+                    flush = null;
+                }
+                batch = new ArrayList<>(entries);
+                results = new ArrayList<>(futures);
+                entries.clear();
+                futures.clear();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            log.debug("Sending batch of {} files", batch.size());
+            try {
+                final List<TransferResult> sent = scheduled(TransferScheduler.Priority.NORMAL, () -> send(batch));
+                for (int i = 0; i < results.size(); i++) {
+                    results.get(i).complete(sent.get(i));
+                }
+            } catch (Exception e) {
+                results.forEach(r -> r.completeExceptionally(e));
+            }
+        }
+
+        void close() {
+            flush();
+            getEndpoint().getCamelContext().getExecutorServiceManager().shutdown(scheduler);
+        }
+    }
 }
@@ -0,0 +1,291 @@
+package nl.vpro.camel;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.sshd.client.SshClient;
+import org.apache.sshd.client.keyverifier.*;
+import org.apache.sshd.client.session.ClientSession;
+import org.apache.sshd.common.compression.BuiltinCompressions;
+import org.apache.sshd.common.keyprovider.FileKeyPairProvider;
+
+/**
+ * A bounded pool of ssh sessions to one {@code user@host:port}, shared by all endpoints connecting to it with the same private key, host key checking and compression (see {@link ScpComponent#connectionKey(ScpEndpoint)}).
+ * <p>
+ * At most {@link ScpEndpoint#getMaxSessions() maxSessions} sessions are opened, each carrying at most {@link ScpEndpoint#getMaxChannelsPerSession() maxChannelsPerSession} concurrent transfers. Callers wait at most {@link ScpEndpoint#getAcquireTimeout() acquireTimeout} for a free slot. Sessions without transfers are closed after {@link ScpEndpoint#getIdleTimeout() idleTimeout}.
+ * <p>
+ * With {@link ScpEndpoint.Transport#EXECUTABLE} there are no sessions to share, but {@link #acquireProcess()} limits the number of concurrent {@code scp} and {@code ssh} processes in the same way.
+ * <p>
+ * The sizes and timeouts are taken from the endpoint which created the pool.
+ */
+@Slf4j
+public class SshSessionPool implements Closeable {
+
+    @Getter
+    private final String key;
+    private final ScpEndpoint endpoint;
+    private final int maxSessions;
+    private final int maxChannelsPerSession;
+    private final Duration idleTimeout;
+    private final Duration acquireTimeout;
+    private final Duration connectTimeout;
+    private final int maxProcesses;
+    private final Semaphore processes;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final List<PooledSession> sessions = new ArrayList<>();
+    private int connecting = 0;
+    private SshClient client;
+    private boolean closed = false;
+
+    int references = 0;
+
+    SshSessionPool(String key, ScpEndpoint endpoint) {
+        this.key = key;
+        this.endpoint = endpoint;
+        this.maxSessions = Math.max(1, endpoint.getMaxSessions());
+        this.maxChannelsPerSession = Math.max(1, endpoint.getMaxChannelsPerSession());
+        this.idleTimeout = ScpEndpoint.parseDuration(endpoint.getIdleTimeout(), Duration.ofSeconds(60));
+        this.acquireTimeout = ScpEndpoint.parseDuration(endpoint.getAcquireTimeout(), Duration.ofSeconds(30));
+        this.connectTimeout = ScpEndpoint.parseDuration(endpoint.getConnectTimeout(), Duration.ofSeconds(10));
+        // with a control master, all processes are channels of the one master session
+        this.maxProcesses = endpoint.isControlMaster() ? maxChannelsPerSession : maxSessions;
+        this.processes = new Semaphore(maxProcesses, true);
+    }
+
+    /**
+     * Acquires a channel slot on a session, opening a new session if all are busy and the maximum is not yet reached. The returned lease must be closed when the transfer is finished.
+     * @throws TimeoutException If no slot became available within the acquire timeout
+     */
+    public Lease acquire() throws IOException, TimeoutException, InterruptedException {
+        final long deadline = System.nanoTime() + acquireTimeout.toNanos();
+        lock.lock();
+        try {
+            while (true) {
+                if (closed) {
+                    throw new IllegalStateException(this + " is closed");
+                }
+                sessions.removeIf(s -> !s.session.isOpen() && s.leases == 0);
+                for (PooledSession pooled : sessions) {
+                    if (pooled.leases < maxChannelsPerSession && pooled.session.isOpen()) {
+                        pooled.leases++;
+                        return new Lease(pooled);
+                    }
+                }
+                if (sessions.size() + connecting < maxSessions) {
+                    connecting++;
+                    final ClientSession session;
+                    lock.unlock();
+                    try {
+                        session = connect();
+                    } finally {
+                        lock.lock();
+                        connecting--;
+                        available.signalAll();
+                    }
+                    if (closed) {
+                        // closed while connecting, close() didn't see this one
+                        session.close(false);
+                        throw new IllegalStateException(this + " is closed");
+                    }
+                    final PooledSession pooled = new PooledSession(session);
+                    pooled.leases++;
+                    sessions.add(pooled);
+                    return new Lease(pooled);
+                }
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new TimeoutException("No ssh session available for " + key + " within " + acquireTimeout);
+                }
+                available.awaitNanos(remaining);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Acquires permission to start an {@code scp} or {@code ssh} process. The returned lease must be closed when the process is finished.
+     * @throws TimeoutException If no permit became available within the acquire timeout
+     */
+    public Lease acquireProcess() throws TimeoutException, InterruptedException {
+        if (!processes.tryAcquire(acquireTimeout.toNanos(), TimeUnit.NANOSECONDS)) {
+            throw new TimeoutException("No more processes allowed for " + key + " within " + acquireTimeout);
+        }
+        return new Lease(null);
+    }
+
+    private void release(PooledSession pooled) {
+        lock.lock();
+        try {
+            pooled.leases--;
+            pooled.lastUsed = Instant.now();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the sessions which were not used for longer than the idle timeout.
+     */
+    public void evictIdle() {
+        final List<PooledSession> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            final Instant threshold = Instant.now().minus(idleTimeout);
+            sessions.removeIf(s -> {
+                if (s.leases == 0 && (s.lastUsed.isBefore(threshold) || !s.session.isOpen())) {
+                    evicted.add(s);
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            lock.unlock();
+        }
+        for (PooledSession s : evicted) {
+            log.debug("Closing idle session {}", s.session);
+            s.session.close(false);
+        }
+    }
+
+    /**
+     * @return The number of currently open sessions
+     */
+    public int getSessionCount() {
+        lock.lock();
+        try {
+            return sessions.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of transfers currently using a session or process of this pool
+     */
+    public int getActiveCount() {
+        lock.lock();
+        try {
+            return sessions.stream().mapToInt(s -> s.leases).sum() + maxProcesses - processes.availablePermits();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ClientSession connect() throws IOException {
+        log.debug("Connecting to {}", key);
+        final ClientSession session = client().connect(endpoint.getRemoteUser(), endpoint.getRemoteHostName(), endpoint.getPort())
+            .verify(connectTimeout)
+            .getSession();
+        try {
+            for (KeyPair keyPair : new FileKeyPairProvider(endpoint.getActualPrivateKeyFile().toPath()).loadKeys(session)) {
+                session.addPublicKeyIdentity(keyPair);
+            }
+            session.auth().verify(connectTimeout);
+        } catch (IOException | RuntimeException e) {
+            session.close(true);
+            throw e;
+        }
+        log.info("Connected to {}", key);
+        return session;
+    }
+
+    private synchronized SshClient client() {
+        if (client == null) {
+            client = SshClient.setUpDefaultClient();
+            if (endpoint.getStrictHostKeyChecking().getAsBoolean()) {
+                client.setServerKeyVerifier(new KnownHostsServerKeyVerifier(RejectAllServerKeyVerifier.INSTANCE, Paths.get(endpoint.getUserHosts())));
+            } else {
+                client.setServerKeyVerifier(AcceptAllServerKeyVerifier.INSTANCE);
+            }
+            if (endpoint.isCompression()) {
+                client.setCompressionFactories(List.of(BuiltinCompressions.delayedZlib, BuiltinCompressions.zlib, BuiltinCompressions.none));
+            }
+            client.start();
+        }
+        return client;
+    }
+
+    @Override
+    public void close() {
+        final List<PooledSession> toClose;
+        lock.lock();
+        try {
+            closed = true;
+            toClose = new ArrayList<>(sessions);
+            sessions.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        toClose.forEach(s -> s.session.close(false));
+        synchronized (this) {
+            if (client != null) {
+                client.stop();
+                client = null;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SshSessionPool " + key;
+    }
+
+    private static class PooledSession {
+        final ClientSession session;
+        int leases = 0;
+        Instant lastUsed = Instant.now();
+
+        PooledSession(ClientSession session) {
+            this.session = session;
+        }
+    }
+
+    /**
+     * The right to use a session (or to start a process) until closed.
+     */
+    public class Lease implements AutoCloseable {
+        private final PooledSession pooled;
+        private boolean released = false;
+
+        private Lease(PooledSession pooled) {
+            this.pooled = pooled;
+        }
+
+        public ClientSession getSession() {
+            if (pooled == null) {
+                throw new IllegalStateException("This lease is for a process, not for a session");
+            }
+            return pooled.session;
+        }
+
+        @Override
+        public void close() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (pooled == null) {
+                processes.release();
+            } else {
+                release(pooled);
+            }
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package nl.vpro.camel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+import org.apache.camel.*;
+import org.apache.camel.component.file.GenericFile;
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * One file to transfer: the name it should get on the remote host (relative to {@link ScpEndpoint#getRemotePath()}), and its contents.
+ *
+ * @param fileName The name of the file on the remote host
+ * @param body     The contents. If this is a local file (see {@link #localFile()}) it can be transferred as is, otherwise it is converted to an {@link InputStream}
+ * @param length   The length of the body, if it can be determined without reading it
+ */
+public record TransferEntry(@NonNull String fileName, @Nullable Object body, @Nullable Long length) {
+
+    /**
+     * The entry for a (non-batch) message. The name is taken from the {@link Exchange#FILE_NAME} header.
+     */
+    public static TransferEntry of(Message message) {
+        final String fileName = message.getHeader(Exchange.FILE_NAME, String.class);
+        if (fileName == null || fileName.equals("")) {
+            throw new IllegalArgumentException("Filename can't be empty");
+        }
+        return new TransferEntry(fileName, message.getBody(), length(message.getBody(), message.getHeader(Exchange.FILE_LENGTH, Long.class)));
+    }
+
+    /**
+     * If the message is marked as a batch (with the {@link ScpConstants#BATCH} header), returns all entries of its body. A batch is either a {@link Map} (of file names to contents), or an {@link Iterable} of local files, {@link Message messages} or {@link Exchange exchanges} (as e.g. produced by aggregation).
+     * @return {@code null} if the message is not a batch
+     * @throws IllegalArgumentException If the message is marked as a batch, but its body is not
+     */
+    public static @Nullable List<TransferEntry> batch(Message message) {
+        if (!message.getHeader(ScpConstants.BATCH, false, Boolean.class)) {
+            return null;
+        }
+        final Object body = message.getBody();
+        if (body instanceof Map<?, ?> map) {
+            final List<TransferEntry> result = new ArrayList<>();
+            map.forEach((name, value) -> result.add(new TransferEntry(String.valueOf(name), value, length(value, null))));
+            return result;
+        }
+        if (body instanceof Iterable<?> iterable && !(body instanceof Path)) {
+            final List<TransferEntry> result = new ArrayList<>();
+            for (Object o : iterable) {
+                result.add(entry(o));
+            }
+            return result;
+        }
+        throw new IllegalArgumentException("The body of a batch must be a Map or an Iterable, not " + (body == null ? null : body.getClass().getName()));
+    }
+
+    private static TransferEntry entry(Object o) {
+        if (o instanceof Exchange exchange) {
+            return of(exchange.getMessage());
+        }
+        if (o instanceof Message message) {
+            return of(message);
+        }
+        final File file = localFile(o);
+        if (file != null) {
+            final String name = o instanceof GenericFile<?> genericFile ? genericFile.getRelativeFilePath() : file.getName();
+            return new TransferEntry(name, file, file.length());
+        }
+        throw new IllegalArgumentException("Can't determine a file name for batch entry " + o + ". Use a Map with file names as keys");
+    }
+
+    /**
+     * The body as a file on the local file system, which can be given to scp as is.
+     */
+    public @Nullable File localFile() {
+        return localFile(body);
+    }
+
+    /**
+     * An entry with the same contents, but which can be read more than once. If the body is a local file, a {@code byte[]} or a {@link String} this is the entry itself, otherwise the body is copied to a temporary file, which the caller must delete when done.
+     */
+    public TransferEntry rereadable(CamelContext camelContext) throws NoTypeConversionAvailableException, IOException {
+        if (localFile() != null || body instanceof byte[] || body instanceof String) {
+            return this;
+        }
+        final Path spool = Files.createTempFile(TransferEntry.class.getSimpleName(), ".tmp");
+        try (InputStream inputStream = inputStream(camelContext)) {
+            final long copied = Files.copy(inputStream, spool, StandardCopyOption.REPLACE_EXISTING);
+            return new TransferEntry(fileName, spool.toFile(), copied);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(spool);
+            throw e;
+        }
+    }
+
+    public InputStream inputStream(CamelContext camelContext) throws NoTypeConversionAvailableException {
+        return camelContext.getTypeConverter().mandatoryConvertTo(InputStream.class, body);
+    }
+
+    /**
+     * Determines whether the given body is a file on the local file system (a {@link File}, a {@link Path} or a {@link GenericFile} pointing to a local file).
+     */
+    static @Nullable File localFile(@Nullable Object body) {
+        if (body instanceof GenericFile<?> genericFile) {
+            body = genericFile.getFile();
+        }
+        if (body instanceof Path path) {
+            body = path.toFile();
+        }
+        if (body instanceof File file && file.isFile()) {
+            return file;
+        }
+        return null;
+    }
+
+    private static @Nullable Long length(@Nullable Object body, @Nullable Long header) {
+        if (body instanceof byte[] bytes) {
+            return (long) bytes.length;
+        }
+        final File file = localFile(body);
+        if (file != null) {
+            return file.length();
+        }
+        return header;
+    }
+}
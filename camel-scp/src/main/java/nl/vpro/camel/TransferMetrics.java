@@ -0,0 +1,161 @@
+package nl.vpro.camel;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Statistics about the transfers to one {@code user@host:port}, shared by all endpoints of the {@link ScpComponent} sending to it (see {@link ScpComponent#transferMetrics(String)}).
+ * <p>
+ * The time of a transfer is split in setup time (waiting for and opening a session and channel) and data time (the rest), so slow servers can be told apart from slow links. For the executable transport the setup is done by the {@code scp} process itself, so it is counted as data time.
+ */
+public class TransferMetrics {
+
+    /**
+     * Receives the same events as the metrics, e.g. to publish them elsewhere.
+     */
+    public interface Listener {
+        void sent(long bytes);
+
+        void setup(long nanos);
+
+        void succeeded(long nanos);
+
+        void failed(long nanos, int exitCode);
+    }
+
+    /**
+     * The exit code recorded for failures without one, like exceptions of the native transport
+     */
+    public static final int NO_EXIT_CODE = -1;
+
+    @Getter
+    private final String host;
+    private final @Nullable Listener listener;
+
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder transfers = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder setupNanos = new LongAdder();
+    private final LongAdder transferNanos = new LongAdder();
+    private final Map<Integer, LongAdder> failuresByExitCode = new ConcurrentHashMap<>();
+
+    TransferMetrics(String host, @Nullable Listener listener) {
+        this.host = host;
+        this.listener = listener;
+    }
+
+    /**
+     * Bytes were sent
+     */
+    public void sent(long count) {
+        bytes.add(count);
+        if (listener != null) {
+            listener.sent(count);
+        }
+    }
+
+    /**
+     * Time was spent on getting a session or channel, as part of a transfer
+     */
+    public void setup(long nanos) {
+        setupNanos.add(nanos);
+        if (listener != null) {
+            listener.setup(nanos);
+        }
+    }
+
+    /**
+     * A transfer finished successfully, after the given time (including setup)
+     */
+    public void succeeded(long nanos) {
+        transfers.increment();
+        transferNanos.add(nanos);
+        if (listener != null) {
+            listener.succeeded(nanos);
+        }
+    }
+
+    /**
+     * A transfer failed, after the given time (including setup)
+     * @param exitCode The exit code of {@code scp} or {@code ssh}, or {@link #NO_EXIT_CODE}
+     */
+    public void failed(long nanos, int exitCode) {
+        transfers.increment();
+        failures.increment();
+        transferNanos.add(nanos);
+        failuresByExitCode.computeIfAbsent(exitCode, k -> new LongAdder()).increment();
+        if (listener != null) {
+            listener.failed(nanos, exitCode);
+        }
+    }
+
+    /**
+     * @return The number of bytes sent
+     */
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    /**
+     * @return The number of transfers (a batch counts as one), including failed ones
+     */
+    public long getTransfers() {
+        return transfers.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return The number of failures per exit code of {@code scp} or {@code ssh} ({@link #NO_EXIT_CODE} if there was none)
+     */
+    public Map<Integer, Long> getFailuresByExitCode() {
+        final Map<Integer, Long> result = new TreeMap<>();
+        failuresByExitCode.forEach((code, count) -> result.put(code, count.sum()));
+        return result;
+    }
+
+    /**
+     * @return The total time of all transfers
+     */
+    public Duration getTransferTime() {
+        return Duration.ofNanos(transferNanos.sum());
+    }
+
+    /**
+     * @return The part of {@link #getTransferTime()} spent on getting sessions and channels
+     */
+    public Duration getSetupTime() {
+        return Duration.ofNanos(setupNanos.sum());
+    }
+
+    /**
+     * @return The part of {@link #getTransferTime()} spent on sending data
+     */
+    public Duration getDataTime() {
+        final Duration data = getTransferTime().minus(getSetupTime());
+        // setup of a transfer still running may already be recorded
+        return data.isNegative() ? Duration.ZERO : data;
+    }
+
+    /**
+     * @return The average number of bytes per second while sending data
+     */
+    public double getThroughput() {
+        final long nanos = getDataTime().toNanos();
+        return nanos <= 0 ? 0 : getBytes() * 1_000_000_000d / nanos;
+    }
+
+    @Override
+    public String toString() {
+        return "TransferMetrics " + host + ": " + getTransfers() + " transfers (" + getFailures() + " failed), " + getBytes() + " bytes";
+    }
+}
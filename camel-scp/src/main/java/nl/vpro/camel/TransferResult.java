@@ -0,0 +1,32 @@
+package nl.vpro.camel;
+
+import org.checkerframework.checker.nullness.qual.NonNull;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * The outcome of transferring one {@link TransferEntry}.
+ *
+ * @param fileName  The name of the entry
+ * @param produced  The remote path the entry was written to
+ * @param exception Why the transfer failed, or {@code null} if it succeeded
+ * @param checksum  The hex encoded checksum of the sent bytes, if {@link ScpEndpoint#getChecksumAlgorithm() requested}
+ * @param skipped   Whether the entry was not sent, because it {@link ScpEndpoint#getIfUnchanged() was unchanged}
+ */
+public record TransferResult(@NonNull String fileName, @NonNull String produced, @Nullable Exception exception, @Nullable String checksum, boolean skipped) {
+
+    public static TransferResult success(TransferEntry entry, String produced, @Nullable String checksum) {
+        return new TransferResult(entry.fileName(), produced, null, checksum, false);
+    }
+
+    public static TransferResult failure(TransferEntry entry, String produced, Exception exception) {
+        return new TransferResult(entry.fileName(), produced, exception, null, false);
+    }
+
+    public static TransferResult skipped(TransferEntry entry, String produced) {
+        return new TransferResult(entry.fileName(), produced, null, null, true);
+    }
+
+    public boolean isSuccess() {
+        return exception == null;
+    }
+}
@@ -0,0 +1,325 @@
+package nl.vpro.camel;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Schedules the transfers of all endpoints of a {@link ScpComponent}.
+ * <p>
+ * At most {@link ScpComponent#getMaxConcurrentTransfers()} transfers run at the same time. Waiting transfers are started by {@link Priority priority}, and within a priority round-robin per endpoint, so one endpoint with many transfers can't starve the others.
+ * <p>
+ * The bytes going out can be limited globally ({@link ScpComponent#getMaxBytesPerSecond()}) and per remote host ({@link ScpComponent#getMaxBytesPerSecondPerHost()}), using token buckets, see {@link #throttle(InputStream, String)}. They are also counted in the {@link TransferMetrics} of the host.
+ */
+public class TransferScheduler {
+
+    public enum Priority {
+        HIGH,
+        NORMAL,
+        LOW
+    }
+
+    private final int maxConcurrentTransfers;
+    private final TokenBucket global;
+    private final long maxBytesPerSecondPerHost;
+    private final Map<String, TokenBucket> hosts = new ConcurrentHashMap<>();
+    private final Function<String, TransferMetrics> metrics;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Map<Priority, LinkedHashMap<String, Deque<Ticket>>> queues = new EnumMap<>(Priority.class);
+    private int active = 0;
+    private int waiting = 0;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private long sampledBytes = 0;
+    private long sampledAt = System.nanoTime();
+    private volatile double throughput = 0;
+
+    TransferScheduler(int maxConcurrentTransfers, long maxBytesPerSecond, long maxBytesPerSecondPerHost) {
+        this(maxConcurrentTransfers, maxBytesPerSecond, maxBytesPerSecondPerHost, host -> new TransferMetrics(host, null));
+    }
+
+    /**
+     * @param metrics The metrics of a {@code user@host:port}
+     */
+    TransferScheduler(int maxConcurrentTransfers, long maxBytesPerSecond, long maxBytesPerSecondPerHost, Function<String, TransferMetrics> metrics) {
+        this.maxConcurrentTransfers = maxConcurrentTransfers;
+        this.metrics = metrics;
+        this.global = maxBytesPerSecond > 0 ? new TokenBucket(maxBytesPerSecond) : null;
+        this.maxBytesPerSecondPerHost = maxBytesPerSecondPerHost;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new LinkedHashMap<>());
+        }
+    }
+
+    /**
+     * Waits for a transfer to be allowed. The returned slot must be closed when the transfer is done.
+     * @param queue The queue to wait in, normally the endpoint uri
+     * @throws TimeoutException If the transfer was not allowed within the timeout
+     */
+    public Slot acquire(String queue, Priority priority, Duration timeout) throws InterruptedException, TimeoutException {
+        lock.lock();
+        try {
+            if (maxConcurrentTransfers <= 0) {
+                active++;
+                return new Slot();
+            }
+            final Ticket ticket = new Ticket();
+            queues.get(priority).computeIfAbsent(queue, k -> new ArrayDeque<>()).add(ticket);
+            waiting++;
+            dispatch();
+            final long deadline = System.nanoTime() + timeout.toNanos();
+            while (!ticket.granted) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    remove(ticket, queue, priority);
+                    throw new TimeoutException("No transfer slot available for " + queue + " within " + timeout);
+                }
+                try {
+                    changed.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    if (!remove(ticket, queue, priority)) {
+                        // granted meanwhile, but it won't be used
+                        active--;
+                        dispatch();
+                    }
+                    throw e;
+                }
+            }
+            return new Slot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the ticket out of its queue, if it is still waiting there.
+     * @return {@code false} if it was not waiting anymore, because it was granted
+     */
+    private boolean remove(Ticket ticket, String queue, Priority priority) {
+        final Deque<Ticket> tickets = queues.get(priority).get(queue);
+        if (tickets == null || !tickets.remove(ticket)) {
+            return false;
+        }
+        waiting--;
+        if (tickets.isEmpty()) {
+            queues.get(priority).remove(queue);
+        }
+        return true;
+    }
+
+    /**
+     * Grants waiting tickets while there is room: highest priority first, and the queues of a priority in turns.
+     */
+    private void dispatch() {
+        while (active < maxConcurrentTransfers && waiting > 0) {
+            for (LinkedHashMap<String, Deque<Ticket>> byQueue : queues.values()) {
+                final Iterator<Map.Entry<String, Deque<Ticket>>> iterator = byQueue.entrySet().iterator();
+                if (!iterator.hasNext()) {
+                    continue;
+                }
+                final Map.Entry<String, Deque<Ticket>> next = iterator.next();
+                iterator.remove();
+                next.getValue().poll().granted = true;
+                if (!next.getValue().isEmpty()) {
+                    // to the back of the line
+                    byQueue.put(next.getKey(), next.getValue());
+                }
+                waiting--;
+                active++;
+                break;
+            }
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * Wraps the stream, so that reading it is limited to the configured rates (if any), and is counted in {@link #getBytes()}.
+     * @param host The {@code user@host:port} the bytes are sent to
+     */
+    public InputStream throttle(InputStream inputStream, String host) {
+        return new FilterInputStream(inputStream) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b >= 0) {
+                    consume(host, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read > 0) {
+                    consume(host, read);
+                }
+                return read;
+            }
+        };
+    }
+
+    /**
+     * Accounts for bytes sent to the host, waiting if they exceed the allowed rates.
+     */
+    public void consume(String host, long count) throws InterruptedIOException {
+        count(host, count);
+        try {
+            if (global != null) {
+                global.acquire(count);
+            }
+            final TokenBucket bucket = hostBucket(host);
+            if (bucket != null) {
+                bucket.acquire(count);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(e.getMessage());
+        }
+    }
+
+    /**
+     * Accounts for bytes which were sent by something else (like the {@code scp} executable), so they were not {@link #throttle(InputStream, String) throttled}.
+     */
+    public void count(String host, long count) {
+        bytes.addAndGet(count);
+        metrics.apply(host).sent(count);
+    }
+
+    private TokenBucket hostBucket(String host) {
+        if (maxBytesPerSecondPerHost <= 0) {
+            return null;
+        }
+        return hosts.computeIfAbsent(host, h -> new TokenBucket(maxBytesPerSecondPerHost));
+    }
+
+    /**
+     * The rate at which a single transfer to the host may go, or {@code 0} if unlimited. Used to limit processes which can't be throttled otherwise (like {@code scp -l}).
+     */
+    public long maxBytesPerSecond() {
+        final long globalRate = global == null ? 0 : global.rate;
+        if (globalRate > 0 && maxBytesPerSecondPerHost > 0) {
+            return Math.min(globalRate, maxBytesPerSecondPerHost);
+        }
+        return Math.max(globalRate, maxBytesPerSecondPerHost);
+    }
+
+    /**
+     * Updates the {@link #getThroughput() throughput}. Called periodically by the component.
+     */
+    void sample() {
+        final long now = System.nanoTime();
+        final long current = bytes.get();
+        synchronized (this) {
+            final long elapsed = now - sampledAt;
+            if (elapsed > 0) {
+                throughput = (current - sampledBytes) * 1_000_000_000d / elapsed;
+            }
+            sampledAt = now;
+            sampledBytes = current;
+        }
+    }
+
+    /**
+     * @return The number of transfers waiting for a slot
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The number of transfers currently holding a slot
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return The total number of bytes sent
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return The number of bytes per second sent, during the last sample period
+     */
+    public double getThroughput() {
+        return throughput;
+    }
+
+    private static class Ticket {
+        boolean granted = false;
+    }
+
+    /**
+     * The right to do a transfer, until closed.
+     */
+    public class Slot implements AutoCloseable {
+        private boolean released = false;
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (released) {
+                    return;
+                }
+                released = true;
+                active--;
+                dispatch();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Allows {@code rate} bytes per second, with bursts of at most one second. Callers exceeding it wait until the debt is paid.
+     */
+    static class TokenBucket {
+        private final long rate;
+        private double tokens;
+        private long refilled = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        void acquire(long count) throws InterruptedException {
+            final long wait;
+            synchronized (this) {
+                final long now = System.nanoTime();
+                tokens = Math.min(rate, tokens + (now - refilled) * rate / 1_000_000_000d);
+                refilled = now;
+                tokens -= count;
+                wait = tokens >= 0 ? 0 : (long) (-tokens * 1_000_000_000d / rate);
+            }
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+}
@@ -6,14 +6,26 @@ import lombok.extern.slf4j.Slf4j;
 import java.io.*;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.PosixFilePermissions;
-import java.util.Arrays;
-import java.util.Set;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.UnaryOperator;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 
 import org.apache.camel.*;
 import org.apache.camel.builder.RouteBuilder;
+import org.apache.camel.component.micrometer.MicrometerConstants;
 import org.apache.camel.component.mock.MockEndpoint;
 import org.apache.camel.test.junit5.CamelTestSupport;
 import org.apache.commons.io.FileUtils;
@@ -23,6 +35,7 @@ import org.apache.sshd.common.session.Session;
 import org.apache.sshd.scp.common.ScpTransferEventListener;
 import org.apache.sshd.scp.server.ScpCommandFactory;
 import org.apache.sshd.server.SshServer;
+import org.apache.sshd.server.command.AbstractCommandSupport;
 import org.apache.sshd.server.config.keys.AuthorizedKeysAuthenticator;
 import org.apache.sshd.server.keyprovider.SimpleGeneratorHostKeyProvider;
 import org.apache.sshd.server.session.ServerSession;
@@ -30,8 +43,8 @@ import org.apache.sshd.sftp.server.*;
 import org.junit.jupiter.api.*;
 
 import static org.apache.camel.component.mock.MockEndpoint.assertIsSatisfied;
-import static org.junit.jupiter.api.Assertions.assertEquals;
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.apache.commons.text.StringEscapeUtils.unescapeXSI;
+import static org.junit.jupiter.api.Assertions.*;
 
 
 @Slf4j
@@ -161,6 +174,607 @@ public class ScpComponentTest extends CamelTestSupport {
             Exchange.FILE_NAME, FILENAME);
     }
 
+    @Test
+    public void testPrivateKeyBytes() throws Exception {
+        byte[] bytes = IOUtils.resourceToByteArray("/id_rsa");
+        System.setProperty("key", new String(bytes, StandardCharsets.UTF_8));
+        ScpEndpoint fromBytes = context.getEndpoint("scp://localhost?remotePath=/a&remoteUser=test", ScpEndpoint.class);
+        fromBytes.setPrivateKeyBytes(bytes);
+        fromBytes.createProducer();
+        ScpEndpoint fromEnv = context.getEndpoint("scp://localhost?remotePath=/b&remoteUser=test&privateKeyFile=env:key", ScpEndpoint.class);
+        fromEnv.createProducer();
+
+        final Path keyFile = fromBytes.getActualPrivateKeyFile().toPath();
+        assertEquals(keyFile, fromEnv.getActualPrivateKeyFile().toPath());
+        assertArrayEquals(bytes, Files.readAllBytes(keyFile));
+        assertEquals("r--------", PosixFilePermissions.toString(Files.getPosixFilePermissions(keyFile)));
+
+        context.stop();
+        assertFalse(Files.exists(keyFile));
+
+        context.start();
+        assertTrue(Files.exists(fromBytes.getActualPrivateKeyFile().toPath()));
+        assertTrue(Files.exists(fromEnv.getActualPrivateKeyFile().toPath()));
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&streaming=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMinimumMessageCount(1);
+        input.sendBodyAndHeader(new ByteArrayInputStream("some streamed input".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+        assertEquals("some streamed input", Files.readString(scpRoot.resolve(FILENAME)));
+        assertEquals("//" + FILENAME, mock.getExchanges().get(0).getIn().getHeader(Exchange.FILE_NAME_PRODUCED));
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        addDefaultRoutesBuilder();
+        final Path source = Files.createTempFile("scp_source", ".txt");
+        try {
+            Files.writeString(source, "some file input");
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMinimumMessageCount(1);
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            assertIsSatisfied(context);
+            assertEquals("/" + FILENAME, scpEventListener.getFile().toString());
+            assertEquals(15, scpEventListener.getLength());
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testControlMaster() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&controlMaster=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(2);
+        input.sendBodyAndHeader(new ByteArrayInputStream("first".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader(new ByteArrayInputStream("second".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+        assertEquals(6, scpEventListener.getLength());
+
+        ScpEndpoint endpoint = context.getEndpoints().stream()
+            .filter(e -> e instanceof ScpEndpoint)
+            .map(e -> (ScpEndpoint) e)
+            .findFirst().orElseThrow();
+        assertTrue(endpoint.isControlMasterRunning());
+        assertEquals(0, endpoint.getControlMasterReconnects());
+
+        endpoint.stop();
+        assertFalse(endpoint.isControlMasterRunning());
+    }
+
+    @Test
+    public void testNativeSftp() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(2);
+        input.sendBodyAndHeader(new ByteArrayInputStream("some native input".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader(new ByteArrayInputStream("more native input".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME + ".2");
+        assertIsSatisfied(context);
+        assertEquals("some native input", Files.readString(scpRoot.resolve(FILENAME)));
+        assertEquals("more native input", Files.readString(scpRoot.resolve(FILENAME + ".2")));
+    }
+
+    @Test
+    public void testNativeScp() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&protocol=scp");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMinimumMessageCount(1);
+        input.sendBodyAndHeader("some input".getBytes(StandardCharsets.UTF_8), Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+        assertEquals("/" + FILENAME, scpEventListener.getFile().toString());
+        assertEquals(10, scpEventListener.getLength());
+
+        // the length of a stream is unknown
+        assertThrows(CamelExecutionException.class, () ->
+            input.sendBodyAndHeader(new ByteArrayInputStream("some input".getBytes(StandardCharsets.UTF_8)),
+            Exchange.FILE_NAME, FILENAME)
+        );
+    }
+
+    @Test
+    public void testNativeIncorrectKey() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/wrong_id_rsa&transport=native");
+        assertThrows(CamelExecutionException.class, () ->
+            input.sendBodyAndHeader(new ByteArrayInputStream("some input".getBytes(StandardCharsets.UTF_8)),
+                Exchange.FILE_NAME, FILENAME)
+        );
+    }
+
+    @Test
+    public void testSessionPoolPerIdentity() throws Exception {
+        ScpEndpoint right = context.getEndpoint("scp://localhost?remotePath=/a&remoteUser=test&privateKeyFile=src/test/resources/id_rsa&transport=native", ScpEndpoint.class);
+        right.createProducer();
+        ScpEndpoint alsoRight = context.getEndpoint("scp://localhost?remotePath=/b&remoteUser=test&privateKeyFile=src/test/resources/id_rsa&transport=native", ScpEndpoint.class);
+        alsoRight.createProducer();
+        ScpEndpoint wrong = context.getEndpoint("scp://localhost?remotePath=/c&remoteUser=test&privateKeyFile=src/test/resources/wrong_id_rsa&transport=native", ScpEndpoint.class);
+        wrong.createProducer();
+
+        assertSame(right.sessionPool(), alsoRight.sessionPool());
+        assertNotSame(right.sessionPool(), wrong.sessionPool());
+    }
+
+    @Test
+    public void testNativeSessionPool() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&maxSessions=1&maxChannelsPerSession=2");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(6);
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(input.asyncRequestBodyAndHeader("direct:testinput",
+                new ByteArrayInputStream(("input " + i).getBytes(StandardCharsets.UTF_8)),
+                Exchange.FILE_NAME, FILENAME + "." + i));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        assertIsSatisfied(context);
+        for (int i = 0; i < 6; i++) {
+            assertEquals("input " + i, Files.readString(scpRoot.resolve(FILENAME + "." + i)));
+        }
+        ScpEndpoint endpoint = context.getEndpoints().stream()
+            .filter(e -> e instanceof ScpEndpoint)
+            .map(e -> (ScpEndpoint) e)
+            .findFirst().orElseThrow();
+        assertEquals(1, endpoint.getPooledSessions());
+        assertEquals(0, endpoint.getActiveTransfers());
+    }
+
+    @Test
+    public void testBatch() throws Exception {
+        addDefaultRoutesBuilder();
+        final Path source = Files.createTempFile("scp_source", ".txt");
+        try {
+            Files.writeString(source, "from a file");
+            Map<String, Object> batch = new LinkedHashMap<>();
+            batch.put("a.txt", "some input");
+            batch.put("b.txt", source.toFile());
+            batch.put("sub/c.txt", new ByteArrayInputStream("nested".getBytes(StandardCharsets.UTF_8)));
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(1);
+            input.sendBodyAndHeader(batch, ScpConstants.BATCH, true);
+            assertIsSatisfied(context);
+
+            assertEquals("some input", Files.readString(scpRoot.resolve("a.txt")));
+            assertEquals("from a file", Files.readString(scpRoot.resolve("b.txt")));
+            assertEquals("nested", Files.readString(scpRoot.resolve("sub/c.txt")));
+            List<TransferResult> results = mock.getExchanges().get(0).getIn().getHeader(ScpConstants.BATCH_RESULTS, List.class);
+            assertEquals(3, results.size());
+            assertTrue(results.stream().allMatch(TransferResult::isSuccess));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testNativeBatch() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native");
+        final Path source = Files.createTempFile("scp_source", ".txt");
+        try {
+            Files.writeString(source, "from a file");
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(1);
+            input.sendBodyAndHeader(List.of(source.toFile()), ScpConstants.BATCH, true);
+            assertIsSatisfied(context);
+
+            assertEquals("from a file", Files.readString(scpRoot.resolve(source.getFileName().toString())));
+            List<TransferResult> results = mock.getExchanges().get(0).getIn().getHeader(ScpConstants.BATCH_RESULTS, List.class);
+            assertEquals(1, results.size());
+            assertTrue(results.get(0).isSuccess());
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testNativeBatchIllegalFileName() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native");
+        Map<String, Object> batch = new LinkedHashMap<>();
+        batch.put("a.txt", "some input");
+        batch.put("../../escaped.txt", "some input");
+
+        assertThrows(CamelExecutionException.class, () ->
+            input.sendBodyAndHeader(batch, ScpConstants.BATCH, true)
+        );
+        assertFalse(Files.exists(scpRoot.resolve("a.txt")));
+        assertThrows(CamelExecutionException.class, () ->
+            input.sendBodyAndHeader("some input", Exchange.FILE_NAME, "sub/../../escaped.txt")
+        );
+    }
+
+    @Test
+    public void testBatchWindow() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&batchWindow=PT0.5S&batchSize=3");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(4);
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(input.asyncRequestBodyAndHeader("direct:testinput", "input " + i, Exchange.FILE_NAME, FILENAME + "." + i));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        assertIsSatisfied(context);
+        for (int i = 0; i < 4; i++) {
+            assertEquals("input " + i, Files.readString(scpRoot.resolve(FILENAME + "." + i)));
+        }
+        assertEquals(Set.of("//" + FILENAME + ".0", "//" + FILENAME + ".1", "//" + FILENAME + ".2", "//" + FILENAME + ".3"),
+            mock.getExchanges().stream().map(e -> e.getIn().getHeader(Exchange.FILE_NAME_PRODUCED)).collect(Collectors.toSet()));
+    }
+
+    @Test
+    public void testAsync() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&async=true&transferPoolSize=2&transferVirtualThreads=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(4);
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            futures.add(input.asyncRequestBodyAndHeader("direct:testinput", "input " + i, Exchange.FILE_NAME, FILENAME + "." + i));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        assertIsSatisfied(context);
+        for (int i = 0; i < 4; i++) {
+            assertEquals("input " + i, Files.readString(scpRoot.resolve(FILENAME + "." + i)));
+        }
+    }
+
+    @Test
+    public void testAsyncFailure() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&async=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(0);
+        assertThrows(CamelExecutionException.class, () ->
+            input.sendBodyAndHeader("some input", Exchange.FILE_NAME, "nonexisting/" + FILENAME)
+        );
+        assertIsSatisfied(context);
+    }
+
+    @Test
+    public void testResumable() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&resumable=true");
+        // as if a previous attempt failed after 5 bytes. Upper case to show that these are not sent again
+        Files.writeString(scpRoot.resolve(FILENAME + NativeTransport.PARTIAL_SUFFIX), "SOME ");
+        Files.writeString(scpRoot.resolve(FILENAME), "previous version");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(1);
+        input.sendBodyAndHeader("some input", Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+
+        assertEquals("SOME input", Files.readString(scpRoot.resolve(FILENAME)));
+        assertFalse(Files.exists(scpRoot.resolve(FILENAME + NativeTransport.PARTIAL_SUFFIX)));
+    }
+
+    @Test
+    public void testResumableNeedsNativeSftp() {
+        assertThrows(FailedToStartRouteException.class, () ->
+            addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&resumable=true")
+        );
+    }
+
+    @Test
+    public void testParallelUploads() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&parallelUploads=3&partSize=10000");
+        final Path source = Files.createTempFile("scp_source", ".bin");
+        try {
+            final byte[] bytes = new byte[95000];
+            new Random(1).nextBytes(bytes);
+            Files.write(source, bytes);
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(1);
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            assertIsSatisfied(context);
+
+            assertArrayEquals(bytes, Files.readAllBytes(scpRoot.resolve(FILENAME)));
+            assertFalse(Files.exists(scpRoot.resolve(FILENAME + NativeTransport.PARTIAL_SUFFIX)));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testResumableParallelUploads() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&resumable=true&parallelUploads=3&partSize=10000");
+        final Path source = Files.createTempFile("scp_source", ".bin");
+        try {
+            final byte[] bytes = new byte[95000];
+            new Random(1).nextBytes(bytes);
+            Files.write(source, bytes);
+            // as if a previous attempt failed after 20000 bytes. Other bytes, to show that these are not sent again
+            final byte[] previous = new byte[20000];
+            new Random(2).nextBytes(previous);
+            Files.write(scpRoot.resolve(FILENAME + NativeTransport.PARTIAL_SUFFIX), previous);
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(1);
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            assertIsSatisfied(context);
+
+            final byte[] expected = bytes.clone();
+            System.arraycopy(previous, 0, expected, 0, previous.length);
+            assertArrayEquals(expected, Files.readAllBytes(scpRoot.resolve(FILENAME)));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&compression=true&checksumAlgorithm=SHA-256&verifyChecksum=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(1);
+        mock.expectedHeaderReceived(ScpConstants.CHECKSUM, sha256("some input".getBytes(StandardCharsets.UTF_8)));
+        input.sendBodyAndHeader("some input", Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+    }
+
+    @Test
+    public void testChecksumLocalFile() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&checksumAlgorithm=SHA-256&verifyChecksum=true");
+        final Path source = Files.createTempFile("scp_source", ".txt");
+        try {
+            Files.writeString(source, "from a file");
+
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(1);
+            mock.expectedHeaderReceived(ScpConstants.CHECKSUM, sha256("from a file".getBytes(StandardCharsets.UTF_8)));
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            assertIsSatisfied(context);
+            assertEquals("from a file", Files.readString(scpRoot.resolve(FILENAME)));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testNativeChecksum() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&compression=true&checksumAlgorithm=SHA-256&verifyChecksum=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(1);
+        mock.expectedHeaderReceived(ScpConstants.CHECKSUM, sha256("some input".getBytes(StandardCharsets.UTF_8)));
+        input.sendBodyAndHeader("some input", Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+        assertEquals("some input", Files.readString(scpRoot.resolve(FILENAME)));
+    }
+
+    private static String sha256(byte[] bytes) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void testConsumer() throws Exception {
+        final Path in = Files.createDirectories(scpRoot.resolve("in"));
+        Files.writeString(in.resolve("a.txt"), "a");
+        Files.writeString(in.resolve("b.txt"), "b");
+        Files.writeString(in.resolve("c.txt"), "c");
+        Files.writeString(in.resolve("d.txt" + NativeTransport.PARTIAL_SUFFIX), "still uploading");
+        Files.createDirectories(in.resolve("subdir"));
+
+        MockEndpoint mock = getMockEndpoint("mock:consumed");
+        mock.expectedMessageCount(3);
+        mock.expectedBodiesReceivedInAnyOrder("a", "b", "c");
+        context.addRoutes(new RouteBuilder() {
+            @Override
+            public void configure() {
+                from("scp://localhost?remotePath=/in&port=2222&remoteUser=test&connectTimeout=30000&useUserKnownHostsFile=false"
+                    + "&privateKeyFile=src/test/resources/id_rsa&delay=100&maxMessagesPerPoll=2&concurrentDownloads=2")
+                    .convertBodyTo(String.class)
+                    .to("mock:consumed");
+            }
+        });
+        assertIsSatisfied(context);
+
+        // only changed files are consumed again
+        mock.reset();
+        mock.expectedMessageCount(1);
+        mock.expectedBodiesReceived("bb");
+        mock.expectedHeaderReceived(Exchange.FILE_NAME, "b.txt");
+        Files.writeString(in.resolve("b.txt"), "bb");
+        assertIsSatisfied(context);
+
+        // a file which disappeared is forgotten, so it is consumed again if it comes back unchanged
+        final FileTime modified = Files.getLastModifiedTime(in.resolve("b.txt"));
+        mock.reset();
+        mock.expectedMessageCount(1);
+        mock.expectedBodiesReceived("bb");
+        Files.delete(in.resolve("b.txt"));
+        Thread.sleep(500);
+        Files.writeString(in.resolve("b.txt"), "bb");
+        Files.setLastModifiedTime(in.resolve("b.txt"), modified);
+        assertIsSatisfied(context);
+    }
+
+    @Test
+    public void testSkipUnchanged() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&ifUnchanged=skip");
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(5);
+
+        input.sendBodyAndHeader("some input", Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader(new ByteArrayInputStream("some input".getBytes(StandardCharsets.UTF_8)), Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader("other input", Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader("other input", Exchange.FILE_NAME, FILENAME);
+        Files.delete(scpRoot.resolve(FILENAME));
+        input.sendBodyAndHeader("other input", Exchange.FILE_NAME, FILENAME);
+        assertIsSatisfied(context);
+
+        assertEquals(List.of(false, true, false, true, false),
+            mock.getExchanges().stream().map(e -> e.getIn().getHeader(ScpConstants.SKIPPED)).toList());
+        assertEquals("other input", Files.readString(scpRoot.resolve(FILENAME)));
+    }
+
+    @Test
+    public void testSkipUnchangedLocalFile() throws Exception {
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&ifUnchanged=skip");
+        final Path source = Files.createTempFile("scp_source", ".txt");
+        try {
+            MockEndpoint mock = getMockEndpoint("mock:result");
+            mock.expectedMessageCount(5);
+
+            Files.writeString(source, "some input");
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            // same length and modification time, not even read
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            // touched, so read, but there is no digest of what was sent yet
+            Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 10_000));
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            // touched again, now the digest tells it is unchanged
+            Files.setLastModifiedTime(source, FileTime.fromMillis(Files.getLastModifiedTime(source).toMillis() + 10_000));
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            Files.writeString(source, "SOME INPUT");
+            input.sendBodyAndHeader(source.toFile(), Exchange.FILE_NAME, FILENAME);
+            assertIsSatisfied(context);
+
+            assertEquals(List.of(false, true, false, true, false),
+                mock.getExchanges().stream().map(e -> e.getIn().getHeader(ScpConstants.SKIPPED)).toList());
+            assertEquals("SOME INPUT", Files.readString(scpRoot.resolve(FILENAME)));
+        } finally {
+            Files.delete(source);
+        }
+    }
+
+    @Test
+    public void testBandwidth() throws Exception {
+        final ScpComponent component = context.getComponent("scp", ScpComponent.class);
+        component.setMaxConcurrentTransfers(2);
+        component.setMaxBytesPerSecond(20_000);
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native&async=true");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(3);
+        final byte[] bytes = new byte[20_000];
+        final long start = System.nanoTime();
+        List<CompletableFuture<Object>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            futures.add(input.asyncRequestBodyAndHeader("direct:testinput", bytes, Exchange.FILE_NAME, FILENAME + "." + i));
+        }
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).get(30, TimeUnit.SECONDS);
+        assertIsSatisfied(context);
+        // one second burst, and 40000 bytes more at 20000 bytes/s
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(1800));
+        assertEquals(60_000, component.getBytesSent());
+        assertEquals(0, component.getTransferQueueDepth());
+        assertEquals(0, component.getActiveTransfers());
+    }
+
+    @Test
+    public void testTransferScheduler() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(1, 0, 0);
+        final List<String> order = Collections.synchronizedList(new ArrayList<>());
+        final List<Thread> threads = new ArrayList<>();
+        try (TransferScheduler.Slot ignored = scheduler.acquire("a", TransferScheduler.Priority.NORMAL, Duration.ofSeconds(10))) {
+            int i = 0;
+            for (String queue : List.of("a low", "a", "a", "b")) {
+                final TransferScheduler.Priority priority = queue.endsWith("low") ? TransferScheduler.Priority.LOW : TransferScheduler.Priority.NORMAL;
+                final Thread thread = new Thread(() -> {
+                    try (TransferScheduler.Slot slot = scheduler.acquire(queue.split(" ")[0], priority, Duration.ofSeconds(10))) {
+                        order.add(queue);
+                    } catch (Exception e) {
+                        order.add(e.getMessage());
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+                while (scheduler.getQueueDepth() <= i) {
+                    Thread.sleep(1);
+                }
+                i++;
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertEquals(List.of("a", "b", "a", "a low"), order);
+    }
+
+    @Test
+    public void testTransferSchedulerInterrupted() throws Exception {
+        final TransferScheduler scheduler = new TransferScheduler(1, 0, 0);
+        final List<Exception> exceptions = Collections.synchronizedList(new ArrayList<>());
+        final Thread thread;
+        try (TransferScheduler.Slot ignored = scheduler.acquire("a", TransferScheduler.Priority.NORMAL, Duration.ofSeconds(10))) {
+            thread = new Thread(() -> {
+                try (TransferScheduler.Slot slot = scheduler.acquire("b", TransferScheduler.Priority.NORMAL, Duration.ofSeconds(10))) {
+                    exceptions.add(null);
+                } catch (Exception e) {
+                    exceptions.add(e);
+                }
+            });
+            thread.start();
+            while (scheduler.getQueueDepth() == 0) {
+                Thread.sleep(1);
+            }
+            thread.interrupt();
+            thread.join(10000);
+        }
+        assertInstanceOf(InterruptedException.class, exceptions.get(0));
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(0, scheduler.getActive());
+        // the slot was not leaked
+        try (TransferScheduler.Slot slot = scheduler.acquire("a", TransferScheduler.Priority.NORMAL, Duration.ofMillis(100))) {
+            assertEquals(1, scheduler.getActive());
+        }
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        context.getRegistry().bind(MicrometerConstants.METRICS_REGISTRY_NAME, registry);
+        addRoutesBuilder(u -> u + "&privateKeyFile=src/test/resources/id_rsa&transport=native");
+
+        MockEndpoint mock = getMockEndpoint("mock:result");
+        mock.expectedMessageCount(2);
+        input.sendBodyAndHeader("some input", Exchange.FILE_NAME, FILENAME);
+        input.sendBodyAndHeader(new byte[1000], Exchange.FILE_NAME, FILENAME + ".bin");
+        assertIsSatisfied(context);
+
+        final ScpEndpoint endpoint = context.getEndpoints().stream()
+            .filter(ScpEndpoint.class::isInstance)
+            .map(ScpEndpoint.class::cast)
+            .findFirst().orElseThrow();
+        assertEquals(2, endpoint.getHostTransfers());
+        assertEquals(0, endpoint.getHostTransferFailures());
+        assertEquals(1010, endpoint.getHostBytesSent());
+        assertTrue(endpoint.getHostThroughput() > 0);
+        assertEquals(1010, registry.get("camel.scp.bytes").tag("host", "test@localhost:2222").counter().count());
+        assertEquals(2, registry.get("camel.scp.transfers").tag("outcome", "success").timer().count());
+        assertTrue(registry.get("camel.scp.setup").timer().count() > 0);
+
+        // the executable with a wrong key fails with an exit code
+        Files.setPosixFilePermissions(Paths.get("src/test/resources/wrong_id_rsa"), PosixFilePermissions.fromString("r--------"));
+        assertThrows(CamelExecutionException.class, () ->
+            template.sendBodyAndHeader("scp://localhost?remotePath=/&port=2222&remoteUser=test&useUserKnownHostsFile=false&strictHostKeyChecking=no&privateKeyFile=src/test/resources/wrong_id_rsa", "some input", Exchange.FILE_NAME, FILENAME)
+        );
+        assertEquals(3, endpoint.getHostTransfers());
+        assertEquals(1, endpoint.getHostTransferFailures());
+        final Map<Integer, Long> byExitCode = context.getComponent("scp", ScpComponent.class).transferMetrics("test@localhost:2222").getFailuresByExitCode();
+        assertEquals(1, byExitCode.size());
+        assertNotEquals(TransferMetrics.NO_EXIT_CODE, byExitCode.keySet().iterator().next());
+        assertEquals(1, registry.get("camel.scp.failures").counter().count());
+    }
+
     private void addDefaultRoutesBuilder() throws Exception {
         addRoutesBuilder("localhost", 2222, "test", "src/test/resources/id_rsa");
     }
@@ -215,7 +829,9 @@ public class ScpComponentTest extends CamelTestSupport {
         sshd.setPort(2222);
         log.debug("Setup SCP-endpoint at localhost:2222");
         sshd.setKeyPairProvider(new SimpleGeneratorHostKeyProvider());
-        ScpCommandFactory factory = new ScpCommandFactory.Builder().build();
+        ScpCommandFactory factory = new ScpCommandFactory.Builder()
+            .withDelegate((channel, command) -> new RemoteCommand(command, scpRoot))
+            .build();
         factory.addEventListener(scpTransferEventListener);
         sshd.setCommandFactory(factory);
         SftpSubsystemFactory sftp = new SftpSubsystemFactory();
@@ -258,6 +874,48 @@ public class ScpComponentTest extends CamelTestSupport {
         }
     }
 
+    /**
+     * Supports the non-scp commands the producer may issue (e.g. {@code cat > <path>}), on the virtual file system of the test server.
+     */
+    private static class RemoteCommand extends AbstractCommandSupport {
+        private static final Pattern CAT = Pattern.compile("cat > (.*)");
+        private static final Pattern SHA256SUM = Pattern.compile("sha256sum (.*)");
+
+        private final Path root;
+
+        public RemoteCommand(String command, Path root) {
+            super(command, null);
+            this.root = root;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Matcher cat = CAT.matcher(getCommand());
+                Matcher sha256sum = SHA256SUM.matcher(getCommand());
+                if (cat.matches()) {
+                    try (OutputStream out = Files.newOutputStream(resolve(cat.group(1)))) {
+                        IOUtils.copy(getInputStream(), out);
+                    }
+                    onExit(0);
+                } else if (sha256sum.matches()) {
+                    final String path = unescapeXSI(sha256sum.group(1));
+                    getOutputStream().write((sha256(Files.readAllBytes(resolve(path))) + "  " + path + "\n").getBytes(StandardCharsets.UTF_8));
+                    getOutputStream().flush();
+                    onExit(0);
+                } else {
+                    onExit(127, "Unsupported command " + getCommand());
+                }
+            } catch (IOException ioe) {
+                onExit(1, ioe.getMessage());
+            }
+        }
+
+        private Path resolve(String path) {
+            return root.resolve(unescapeXSI(path).replaceFirst("^/+", ""));
+        }
+    }
+
     /**
      * This class allows us to check if the user that wants to connect is the correct user
      */
@@ -273,5 +931,13 @@ public class ScpComponentTest extends CamelTestSupport {
         protected boolean isValidUsername(String username, ServerSession session) {
             return this.username.equals(username);
         }
+
+        /**
+         * The keys are loaded lazily, and a concurrent session may find none while that happens.
+         */
+        @Override
+        public synchronized boolean authenticate(String username, PublicKey key, ServerSession session) {
+            return super.authenticate(username, key, session);
+        }
     }
 }